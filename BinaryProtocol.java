@@ -0,0 +1,130 @@
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+// Opt-in binary framing ("BIN1"), negotiated in the JOIN handshake:
+//
+//   client: JOIN::<username>::BIN1        server: USERNAME_ACCEPTED::BIN1
+//
+// after which both directions switch from text lines to frames of
+//
+//   length:varint | opcode:byte | body            (length counts opcode + body)
+//
+// Opcodes 0..3 are MessageType ordinals; body for server -> client messages is
+//   senderId:varint | epochMillis:varint | content (UTF-8, rest of frame)
+// and ROOM (a chat message in a room) is
+//   senderId:varint | epochMillis:varint | roomLength:varint | room | content
+// Client -> server:
+//   CHAT     content (to the sender's current room)
+//   PRIVATE  recipientLength:varint | recipient | content
+//   COMMAND  a text protocol line (LIST::, EXIT::, HISTORY::n, JOIN_ROOM::r ...)
+//   ROOM     roomLength:varint | room | content
+// Sender names are sent with SENDER before their first use on a connection, and again if the
+// server has since given the id to another name (the newest SENDER for an id wins); TEXT carries
+// any other text protocol line unchanged, so every text frame has a binary equivalent.
+public final class BinaryProtocol {
+    public static final String VERSION = "BIN1";
+
+    public static final int OP_CHAT = MessageType.CHAT.ordinal();
+    public static final int OP_PRIVATE = MessageType.PRIVATE.ordinal();
+    public static final int OP_SYSTEM = MessageType.SYSTEM.ordinal();
+    public static final int OP_COMMAND = MessageType.COMMAND.ordinal();
+    public static final int OP_SENDER = 0x10;   // senderId:varint | name
+    public static final int OP_TEXT = 0x11;     // text protocol line
+    public static final int OP_ROOM = 0x12;     // chat message in a room
+
+    private BinaryProtocol() {}
+
+    // Message from the server: opcode = type ordinal.
+    public static byte[] encodeMessage(MessageType type, int senderId, long epochMillis, byte[] body) {
+        int payload = 1 + varintSize(senderId) + varintSize(epochMillis) + body.length;
+        byte[] out = new byte[varintSize(payload) + payload];
+        int pos = putVarint(out, 0, payload);
+        out[pos++] = (byte) type.ordinal();
+        pos = putVarint(out, pos, senderId);
+        pos = putVarint(out, pos, epochMillis);
+        System.arraycopy(body, 0, out, pos, body.length);
+        return out;
+    }
+
+    // Room message from the server.
+    public static byte[] encodeRoomMessage(int senderId, long epochMillis, String room, byte[] body) {
+        byte[] r = room.getBytes(StandardCharsets.UTF_8);
+        int payload = 1 + varintSize(senderId) + varintSize(epochMillis) + varintSize(r.length) + r.length + body.length;
+        byte[] out = new byte[varintSize(payload) + payload];
+        int pos = putVarint(out, 0, payload);
+        out[pos++] = (byte) OP_ROOM;
+        pos = putVarint(out, pos, senderId);
+        pos = putVarint(out, pos, epochMillis);
+        pos = putVarint(out, pos, r.length);
+        System.arraycopy(r, 0, out, pos, r.length);
+        System.arraycopy(body, 0, out, pos + r.length, body.length);
+        return out;
+    }
+
+    public static byte[] encodeSender(int senderId, String name) {
+        byte[] body = name.getBytes(StandardCharsets.UTF_8);
+        int payload = 1 + varintSize(senderId) + body.length;
+        byte[] out = new byte[varintSize(payload) + payload];
+        int pos = putVarint(out, 0, payload);
+        out[pos++] = (byte) OP_SENDER;
+        pos = putVarint(out, pos, senderId);
+        System.arraycopy(body, 0, out, pos, body.length);
+        return out;
+    }
+
+    // opcode + one UTF-8 string (TEXT, COMMAND, client CHAT)
+    public static byte[] encodeString(int opcode, String s) {
+        byte[] body = s.getBytes(StandardCharsets.UTF_8);
+        return encodeBytes(opcode, body, 0, body.length);
+    }
+
+    public static byte[] encodeBytes(int opcode, byte[] body, int off, int len) {
+        int payload = 1 + len;
+        byte[] out = new byte[varintSize(payload) + payload];
+        int pos = putVarint(out, 0, payload);
+        out[pos++] = (byte) opcode;
+        System.arraycopy(body, off, out, pos, len);
+        return out;
+    }
+
+    // client -> server private message
+    public static byte[] encodePrivate(String recipient, String content) {
+        return encodeTargeted(OP_PRIVATE, recipient, content);
+    }
+
+    // client -> server message to a room the client is in
+    public static byte[] encodeRoom(String room, String content) {
+        return encodeTargeted(OP_ROOM, room, content);
+    }
+
+    private static byte[] encodeTargeted(int opcode, String target, String content) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] r = target.getBytes(StandardCharsets.UTF_8);
+        byte[] c = content.getBytes(StandardCharsets.UTF_8);
+        byte[] len = new byte[5];
+        body.write(len, 0, putVarint(len, 0, r.length));
+        body.write(r, 0, r.length);
+        body.write(c, 0, c.length);
+        byte[] b = body.toByteArray();
+        return encodeBytes(opcode, b, 0, b.length);
+    }
+
+    public static int varintSize(long v) {
+        int n = 1;
+        while ((v & ~0x7FL) != 0) {
+            v >>>= 7;
+            n++;
+        }
+        return n;
+    }
+
+    // Writes v as an unsigned LEB128 varint; returns the position after it.
+    public static int putVarint(byte[] buf, int pos, long v) {
+        while ((v & ~0x7FL) != 0) {
+            buf[pos++] = (byte) ((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        buf[pos++] = (byte) v;
+        return pos;
+    }
+}
@@ -0,0 +1,113 @@
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Thread-per-connection transport: run() reads the socket on a handler thread, and queued
+// frames are written by one drain task at a time on the server's writer executor.
+public class BlockingClientHandler extends ClientHandler implements Runnable {
+    private final Socket socket;
+    private OutputStream out;
+    private InputStream in;
+    // Frames are written only by the drain task; the lock also keeps a closing flush from
+    // interleaving with it, without pinning a virtual thread's carrier while a write blocks
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+    private volatile boolean closeAfterDrain;
+
+    public BlockingClientHandler(Socket socket, ChatServer server) {
+        super(server);
+        this.socket = socket;
+    }
+
+    @Override
+    public void run() {
+        try {
+            out = new BufferedOutputStream(socket.getOutputStream(), 8192);
+            in  = socket.getInputStream();
+            startTimeouts();
+
+            int n;
+            while (active && (n = decoder.readFrom(in)) >= 0) {
+                metrics.bytesIn.add(n);
+                while (active && decoder.next()) {
+                    if (!handleFrame()) return;
+                }
+            }
+        } catch (IOException e) {
+            // Client disconnected with an exception
+        } finally {
+            cleanup();
+        }
+    }
+
+    @Override
+    protected void scheduleDrain() {
+        if (drainScheduled.compareAndSet(false, true)) {
+            server.getWriterExecutor().execute(this::drain);
+        }
+    }
+
+    private void drain() {
+        while (true) {
+            writeLock.lock();
+            try {
+                if (out != null) {
+                    Frame f;
+                    while ((f = pollOutbound()) != null) writeFrame(f);
+                    out.flush(); // one flush per batch rather than per frame
+                }
+            } catch (IOException e) {
+                clearOutbound(); // reader side will notice the broken connection and clean up
+            } finally {
+                writeLock.unlock();
+                drainScheduled.set(false);
+            }
+            if (out == null || !hasOutbound() || !drainScheduled.compareAndSet(false, true)) break;
+        }
+        if (closeAfterDrain) {
+            try { socket.close(); } catch (IOException ignored) {}
+        }
+    }
+
+    @Override
+    protected void writeBytes(byte[] bytes) throws IOException {
+        out.write(bytes);
+    }
+
+    @Override
+    protected void writeShared(Frame f, boolean binary) throws IOException {
+        out.write(f.bytes(binary));
+    }
+
+    @Override
+    protected void abort() {
+        active = false;
+        clearOutbound();
+        try { socket.close(); } catch (IOException ignored) {}
+    }
+
+    @Override
+    public void kickAndClose() {
+        if (kickOwnerInstead()) return;
+        active = false;
+        closeAfterDrain = true;
+        if (out == null || !drainScheduled.compareAndSet(false, true)) {
+            if (out == null) {
+                try { socket.close(); } catch (IOException ignored) {}
+            }
+            return; // the running drain task will close after it finishes
+        }
+        server.getWriterExecutor().execute(this::drain);
+    }
+
+    @Override
+    protected void closeTransport() {
+        clearOutbound();
+        try { if (in != null) in.close(); } catch (IOException ignored) {}
+        try { if (!socket.isClosed()) socket.close(); } catch (IOException ignored) {}
+    }
+}
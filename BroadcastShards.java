@@ -0,0 +1,103 @@
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+
+// Parallel broadcast fan-out. Connections are split into shards, each with one worker thread
+// that hands published frames to the shard's members; publishing a broadcast costs one queue
+// offer per shard instead of one send() per client on the sender's thread. A connection stays
+// in the same shard for its lifetime and each shard queue is FIFO, so every recipient sees any
+// one sender's broadcasts in the order they were published.
+public final class BroadcastShards {
+    private final Shard[] shards;
+    private final ServerMetrics metrics;
+
+    BroadcastShards(int count, ServerMetrics metrics) {
+        this.metrics = metrics;
+        this.shards = new Shard[count];
+        for (int i = 0; i < count; i++) {
+            shards[i] = new Shard();
+            Thread t = new Thread(shards[i]::run, "FanOut-" + i);
+            t.setDaemon(true);
+            shards[i].worker = t;
+            t.start();
+        }
+    }
+
+    public int size() { return shards.length; }
+
+    void add(ClientHandler h) {
+        shard(h).members.add(h);
+    }
+
+    void remove(ClientHandler h) {
+        shard(h).members.remove(h);
+    }
+
+    // seq: the broadcast's multicast number, -1 if it was not multicast
+    void publish(Frame frame, MessageType type, long seq) {
+        Delivery d = new Delivery(frame, type, seq);
+        for (Shard s : shards) s.queue.add(d);
+    }
+
+    // Wait until everything published so far has been handed to its recipients.
+    void awaitIdle() throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(shards.length);
+        for (Shard s : shards) s.queue.add(done);
+        done.await();
+    }
+
+    void shutdown() {
+        for (Shard s : shards) s.worker.interrupt();
+    }
+
+    private Shard shard(ClientHandler h) {
+        return shards[Math.floorMod(System.identityHashCode(h), shards.length)];
+    }
+
+    private static final class Delivery {
+        final Frame frame;
+        final MessageType type;
+        final long seq;
+
+        Delivery(Frame frame, MessageType type, long seq) {
+            this.frame = frame;
+            this.type = type;
+            this.seq = seq;
+        }
+    }
+
+    private final class Shard {
+        final Set<ClientHandler> members = ConcurrentHashMap.newKeySet();
+        // Delivery, or a CountDownLatch from awaitIdle()
+        final BlockingQueue<Object> queue = new LinkedBlockingQueue<>();
+        Thread worker;
+
+        void run() {
+            try {
+                while (true) {
+                    Object task = queue.take();
+                    if (task instanceof CountDownLatch) {
+                        ((CountDownLatch) task).countDown();
+                        continue;
+                    }
+                    Delivery d = (Delivery) task;
+                    int recipients = 0;
+                    for (ClientHandler ch : members) {
+                        if (ch.viaMulticast(d.seq)) continue;
+                        try {
+                            ch.send(d.frame);
+                        } catch (RuntimeException e) {
+                            System.err.println("Broadcast to " + ch.getUsername() + " failed: " + e);
+                        }
+                        recipients++;
+                    }
+                    metrics.messagesOut(d.type, recipients);
+                }
+            } catch (InterruptedException e) {
+                // shutting down
+            }
+        }
+    }
+}
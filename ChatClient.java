@@ -1,158 +1,498 @@
 import java.io.*;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+// Chat client engine. A reader thread decodes what the server sends, out of one reusable
+// buffer, and reports it to a ChatClientListener; a writer thread sends what the caller queued.
+// The send methods only encode and queue, and the writer writes everything queued by then with
+// a single flush. Embed it with your own listener (join, send..., exit); main() is the console
+// client built on it.
 public class ChatClient {
+    // reconnect backoff after a dropped connection, and how long to keep trying
+    private static final long FIRST_RETRY_MILLIS = 250;
+    private static final long MAX_RETRY_MILLIS = 8000;
+    private static final long GIVE_UP_MILLIS = 60_000;
+    // frames queued for the writer before the send methods wait for it
+    private static final int SEND_QUEUE_LIMIT = 4096;
+    // queued by exit(): the writer stops after writing what was queued before it
+    private static final byte[] LAST = new byte[0];
+    private static final byte[] MESSAGE = "MESSAGE::".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] ROOM = "ROOM::".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] SEP = "::".getBytes(StandardCharsets.US_ASCII);
+
     private final String host;
     private final int port;
+    private final boolean requestBinary;
+    private final boolean requestResume;
+    private final ChatClientListener listener;
+    // the writer thread and handshakes write under writeLock; the reader replaces the
+    // connection under it when reconnecting
+    private final Object writeLock = new Object();
     private Socket socket;
-    private PrintWriter out;
-    private BufferedReader in;
-    private BufferedReader console;
+    private OutputStream out;
+    private InputStream in;
+    private final BlockingQueue<byte[]> outgoing = new LinkedBlockingQueue<>(SEND_QUEUE_LIMIT);
+    private FrameDecoder decoder;
+    private volatile boolean binary;
+    // session resumption: token from SESSION::, the last SEQ whose frame has been handled, and a
+    // SEQ announced for the frame that follows it (reader thread only, apart from the token)
+    private String username;
+    private volatile String sessionToken;
+    private long lastSeq;
+    private long pendingSeq = -1;
+    private volatile boolean exiting;
+    private volatile boolean connected; // joined and not reconnecting: the send methods may queue
+    // lobby broadcasts by multicast, once the server has sent MCAST::; null otherwise
+    private volatile MulticastReceiver multicast;
+    // binary protocol: interned sender id -> username, as announced by the server
+    private final Map<Long, String> senders = new HashMap<>();
+    private Thread reader;
+    private Thread writer;
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private final CountDownLatch closedLatch = new CountDownLatch(1);
+    private final CountDownLatch lastWritten = new CountDownLatch(1);
+
+    public ChatClient(String host, int port, ChatClientListener listener) {
+        this(host, port, false, listener);
+    }
 
-    public ChatClient(String host, int port) {
+    // requestBinary: ask the server for the compact binary framing (falls back to text)
+    public ChatClient(String host, int port, boolean requestBinary, ChatClientListener listener) {
+        this(host, port, requestBinary, false, listener);
+    }
+
+    // requestResume: ask for a resumable session, so a dropped connection is resumed rather
+    // than ending the client (the server then numbers and keeps every frame for us)
+    public ChatClient(String host, int port, boolean requestBinary, boolean requestResume,
+                      ChatClientListener listener) {
         this.host = host;
         this.port = port;
+        this.requestBinary = requestBinary;
+        this.requestResume = requestResume;
+        this.listener = listener;
     }
 
-    public void start() {
-        try {
-            socket = new Socket(host, port);
-            out = new PrintWriter(socket.getOutputStream(), true);
-            in  = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            console = new BufferedReader(new InputStreamReader(System.in));
-
-            // Handshake for username
-            String serverResp;
-            String username;
-            while (true) {
-                System.out.print("Enter username: ");
-                username = console.readLine();
-                if (username == null) return;
-                username = username.trim();
-                if (username.isEmpty()) continue;
-                out.println("JOIN::" + username);
-                serverResp = in.readLine();
-                if (serverResp == null) {
-                    System.out.println("Server closed connection during handshake.");
-                    return;
-                } else if (serverResp.equals("USERNAME_ACCEPTED")) {
-                    System.out.println("Username accepted. You can now chat. Type /help for client commands.");
-                    break;
-                } else if (serverResp.startsWith("USERNAME_REJECTED::")) {
-                    System.out.println("Username rejected: " + serverResp.substring("USERNAME_REJECTED::".length()));
-                } else {
-                    System.out.println("Unexpected response: " + serverResp);
-                }
+    // Connects (the first time) and asks for the name. Null once accepted, and the client is
+    // running; otherwise why not, and the connection stays open for another try.
+    public synchronized String join(String name) throws IOException {
+        if (connected || closed.get()) throw new IllegalStateException("already joined or closed");
+        // the capabilities follow the name after "::", so the server would see another name
+        if (!Utils.isValidUsername(name)) return Utils.USERNAME_RULES;
+        if (socket == null) connect();
+        username = name;
+        writeNow(joinLine());
+        String resp = readHandshakeLine();
+        if (resp == null) throw new EOFException("Server closed connection during handshake.");
+        if (resp.equals("USERNAME_ACCEPTED::" + BinaryProtocol.VERSION)) {
+            switchToBinary();
+        } else if (!resp.equals("USERNAME_ACCEPTED")) {
+            return resp.startsWith("USERNAME_REJECTED::") ? resp.substring(19) : "Unexpected response: " + resp;
+        }
+        connected = true;
+        reader = new Thread(this::readLoop, "ServerReader");
+        reader.setDaemon(true);
+        reader.start();
+        writer = new Thread(this::writeLoop, "ServerWriter");
+        writer.setDaemon(true);
+        writer.start();
+        return null;
+    }
+
+    public boolean isBinary() { return binary; }
+
+    public boolean isConnected() { return connected; }
+
+    // Whether a dropped connection will be resumed rather than end the client.
+    public boolean isResumable() { return sessionToken != null && !exiting; }
+
+    // The send methods return false, and send nothing, while the client is not connected.
+
+    public boolean sendChat(String text) {
+        return queue(binary ? BinaryProtocol.encodeString(BinaryProtocol.OP_CHAT, text) : line("MSG::" + text));
+    }
+
+    public boolean sendPrivate(String recipient, String text) {
+        return queue(binary ? BinaryProtocol.encodePrivate(recipient, text) : line("PMSG::" + recipient + "::" + text));
+    }
+
+    // Any other protocol line (LIST::, ROOMS::, JOIN_ROOM::room, SEARCH::words, HISTORY::n)
+    public boolean sendCommand(String command) {
+        return queue(commandBytes(command));
+    }
+
+    // Log out (EXIT::) once everything queued before has been written, then close.
+    public void exit() {
+        boolean wasConnected = connected;
+        exiting = true;
+        if (wasConnected && queue(commandBytes("EXIT::")) && queue(LAST)) {
+            try {
+                lastWritten.await(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
+        }
+        close();
+    }
 
-            // Start thread to listen to server messages
-            Thread reader = new Thread(this::readLoop, "ServerReader");
-            reader.start();
+    // Drop the connection without logging out (a resumable session stays parked on the server
+    // for its grace period). The listener gets onClosed() once.
+    public void close() {
+        if (!closed.compareAndSet(false, true)) return;
+        exiting = true;
+        connected = false;
+        MulticastReceiver m = multicast;
+        if (m != null) m.close();
+        if (writer != null) writer.interrupt();
+        if (reader != null && reader != Thread.currentThread()) reader.interrupt();
+        try { Socket s = socket; if (s != null) s.close(); } catch (IOException ignored) {}
+        listener.onClosed();
+        listener.flush();
+        closedLatch.countDown();
+    }
 
-            // Main loop: read console and send messages
-            String line;
-            while ((line = console.readLine()) != null) {
-                line = line.trim();
-                if (line.isEmpty()) continue;
-                if (line.equalsIgnoreCase("/exit")) {
-                    out.println("EXIT::");
-                    break; // exit loop -> cleanup
-                } else if (line.equalsIgnoreCase("/list")) {
-                    out.println("LIST::");
-                } else if (line.startsWith("/w ")) {
-                    // Format: /w username message...
-                    String rest = line.substring(3).trim();
-                    int idx = rest.indexOf(' ');
-                    if (idx >= 0) {
-                        String recipient = rest.substring(0, idx).trim();
-                        String message = rest.substring(idx + 1).trim();
-                        out.println("PMSG::" + recipient + "::" + message);
-                    } else {
-                        System.out.println("Usage: /w <username> <message>");
+    public void awaitClosed() throws InterruptedException {
+        closedLatch.await();
+    }
+
+    // Always asks for multicast and offers heartbeats (ignored by servers without them); a
+    // resumable session and binary framing if requested.
+    private String joinLine() {
+        return "JOIN::" + username + "::" + ClientHandler.MULTICAST_CAPABILITY + "," + ClientHandler.HEARTBEAT_CAPABILITY
+                + (requestResume ? ",RESUME" : "")
+                + (requestBinary ? "," + BinaryProtocol.VERSION : "");
+    }
+
+    private static byte[] line(String line) {
+        return (line + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private byte[] commandBytes(String command) {
+        return binary ? BinaryProtocol.encodeString(BinaryProtocol.OP_COMMAND, command) : line(command);
+    }
+
+    private boolean queue(byte[] frame) {
+        if (!connected) return false;
+        try {
+            outgoing.put(frame);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    // Writer thread: everything queued by the time it wakes goes out with one flush.
+    private void writeLoop() {
+        try {
+            while (!closed.get()) {
+                byte[] frame = outgoing.take();
+                synchronized (writeLock) {
+                    try {
+                        do {
+                            if (frame == LAST) {
+                                out.flush();
+                                lastWritten.countDown();
+                                return;
+                            }
+                            out.write(frame);
+                        } while ((frame = outgoing.poll()) != null);
+                        out.flush();
+                    } catch (IOException e) {
+                        // the reader notices the drop and reconnects; what was queued is lost
+                        outgoing.clear();
                     }
-                } else if (line.equalsIgnoreCase("/help")) {
-                    System.out.println("Client commands:");
-                    System.out.println("  /w <user> <message>  -> private message");
-                    System.out.println("  /list                -> show active users");
-                    System.out.println("  /exit                -> quit");
-                } else {
-                    // Broadcast
-                    out.println("MSG::" + line);
                 }
             }
+        } catch (InterruptedException e) {
+            // closed
+        }
+    }
 
-            // cleanup
-            close();
-        } catch (IOException e) {
-            System.err.println("Connection error: " + e.getMessage());
+    // Handshake lines, written before the writer may send anything on this connection.
+    private void writeNow(String text) throws IOException {
+        synchronized (writeLock) {
+            out.write(line(text));
+            out.flush();
+        }
+    }
+
+    // Next text line during the handshake, or null if the server closed the connection.
+    private String readHandshakeLine() throws IOException {
+        while (!decoder.next()) {
+            if (decoder.readFrom(in) < 0) return null;
         }
+        return decoder.frameAsString();
     }
 
     private void readLoop() {
         try {
-            String inLine;
-            while ((inLine = in.readLine()) != null) {
-                // Parse protocol messages from server
-                if (inLine.startsWith("SYSTEM::")) {
-                    System.out.println("[SYSTEM] " + inLine.substring(8));
-                } else if (inLine.startsWith("MESSAGE::")) {
-                    // MESSAGE::<timestamp>::<sender>::<content>
-                    String[] parts = inLine.split("::", 4);
-                    if (parts.length == 4) {
-                        System.out.println("[" + parts[1] + "] " + parts[2] + ": " + parts[3]);
-                    } else {
-                        System.out.println("Malformed MESSAGE: " + inLine);
-                    }
-                } else if (inLine.startsWith("PRIVATE::")) {
-                    // PRIVATE::<timestamp>::<sender>::<content>
-                    String[] parts = inLine.split("::", 4);
-                    if (parts.length == 4) {
-                        System.out.println("[" + parts[1] + "] (private) " + parts[2] + ": " + parts[3]);
-                    } else {
-                        System.out.println("Malformed PRIVATE: " + inLine);
-                    }
-                } else if (inLine.startsWith("USERLIST::")) {
-                    String list = inLine.substring("USERLIST::".length());
-                    if (list.isEmpty()) {
-                        System.out.println("Active users: (none)");
-                    } else {
-                        System.out.println("Active users: " + list.replace(",", ", "));
-                    }
-                } else if (inLine.startsWith("USERNAME_REJECTED::")) {
-                    System.out.println("Username rejected by server: " + inLine.substring("USERNAME_REJECTED::".length()));
-                } else {
-                    // fallback
-                    System.out.println(inLine);
+            do {
+                try {
+                    do {
+                        while (decoder.next()) dispatch();
+                        listener.flush(); // once per read, however many frames it held
+                    } while (decoder.readFrom(in) >= 0);
+                } catch (IOException e) {
+                    // stream closed
                 }
-            }
-        } catch (IOException e) {
-            // stream closed
+            } while (!exiting && sessionToken != null && reconnect());
         } finally {
-            try { close(); } catch (Exception ignored) {}
+            close();
+        }
+    }
+
+    // A frame announced by SEQ::<n> counts as seen once it has been handled. Sender
+    // announcements ride along with the message after them and are not numbered.
+    private void dispatch() throws IOException {
+        if (decoder.isBinary() && decoder.opcode() == BinaryProtocol.OP_SENDER) {
+            handleBinaryFrame();
+            return;
+        }
+        long seq = pendingSeq;
+        pendingSeq = -1;
+        if (decoder.isBinary()) {
+            handleBinaryFrame();
+        } else {
+            handleTextFrame();
         }
+        if (seq >= 0) lastSeq = seq;
     }
 
-    private void close() {
-        try { if (out != null) out.close(); } catch (Exception ignored) {}
-        try { if (in != null) in.close(); } catch (Exception ignored) {}
-        try { if (socket != null && !socket.isClosed()) socket.close(); } catch (Exception ignored) {}
-        System.out.println("Disconnected.");
-        // end JVM for client
-        System.exit(0);
+    // Reader thread: the connection dropped. Retry with backoff and RESUME the session; if the
+    // server no longer has it, join again under the same name. False to give up.
+    private boolean reconnect() {
+        connected = false;
+        listener.onConnectionLost();
+        listener.flush();
+        long delay = FIRST_RETRY_MILLIS;
+        long deadline = System.currentTimeMillis() + GIVE_UP_MILLIS;
+        while (!exiting && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                return false;
+            }
+            delay = Math.min(delay * 2, MAX_RETRY_MILLIS);
+            try {
+                connect();
+                writeNow("RESUME::" + sessionToken + "::" + lastSeq + (requestBinary ? "::" + BinaryProtocol.VERSION : ""));
+                String resp = readHandshakeLine();
+                if (resp == null) continue;
+                if (resp.startsWith("RESUMED")) {
+                    if (resp.equals("RESUMED::" + BinaryProtocol.VERSION)) switchToBinary();
+                    connected = true;
+                    listener.onReconnected(true);
+                    return true;
+                }
+                // session expired: same name, new session, and whatever was said meanwhile is lost
+                sessionToken = null;
+                lastSeq = 0;
+                pendingSeq = -1;
+                writeNow(joinLine());
+                resp = readHandshakeLine();
+                if (resp == null) continue;
+                if (resp.startsWith("USERNAME_ACCEPTED")) {
+                    if (resp.equals("USERNAME_ACCEPTED::" + BinaryProtocol.VERSION)) switchToBinary();
+                    connected = true;
+                    listener.onReconnected(false);
+                    return true;
+                }
+                listener.onOther("[Could not rejoin: " + resp + "]");
+                return false;
+            } catch (IOException e) {
+                // server still unreachable: try again after the next delay
+            }
+        }
+        return false;
+    }
+
+    // Fresh socket and decoder, and nothing left queued for the old one.
+    private void connect() throws IOException {
+        try { if (socket != null) socket.close(); } catch (IOException ignored) {} // unblocks the writer
+        Socket s = new Socket(host, port);
+        synchronized (writeLock) {
+            socket = s;
+            out = new BufferedOutputStream(s.getOutputStream(), 8192);
+            in = s.getInputStream();
+            outgoing.clear();
+        }
+        decoder = new FrameDecoder(8192, 1 << 20);
+        binary = false;
+    }
+
+    private void switchToBinary() {
+        binary = true;
+        decoder.switchToBinary();
+    }
+
+    private void handleBinaryFrame() throws IOException {
+        int op = decoder.opcode();
+        if (op == BinaryProtocol.OP_SENDER) {
+            long id = decoder.readVarint();
+            senders.put(id, decoder.readRemaining());
+        } else if (op == BinaryProtocol.OP_TEXT) {
+            handleLine(decoder.readRemaining());
+        } else if (op == BinaryProtocol.OP_ROOM) {
+            String sender = senders.getOrDefault(decoder.readVarint(), "?");
+            String ts = Utils.formatTimestamp(decoder.readVarint());
+            String room = decoder.readString((int) decoder.readVarint());
+            listener.onRoomMessage(room, ts, sender, decoder.readRemaining());
+        } else if (op == BinaryProtocol.OP_CHAT || op == BinaryProtocol.OP_PRIVATE || op == BinaryProtocol.OP_SYSTEM) {
+            String sender = senders.getOrDefault(decoder.readVarint(), "?");
+            String ts = Utils.formatTimestamp(decoder.readVarint());
+            String content = decoder.readRemaining();
+            if (op == BinaryProtocol.OP_PRIVATE) {
+                listener.onPrivate(ts, sender, content);
+            } else {
+                listener.onMessage(ts, sender, content);
+            }
+        } else {
+            listener.onOther("Unknown frame opcode " + op);
+        }
+    }
+
+    // Chat lines, the bulk of a busy room, are parsed in place in the decoder's buffer; the
+    // rest (and anything malformed) goes through handleLine as a String.
+    private void handleTextFrame() {
+        if (decoder.consume(MESSAGE)) {
+            // MESSAGE::<timestamp>::<sender>::<content>
+            String ts = decoder.readUntil(SEP);
+            String sender = ts != null ? decoder.readUntil(SEP) : null;
+            if (sender != null) {
+                listener.onMessage(ts, sender, decoder.readRemaining());
+                return;
+            }
+        } else if (decoder.consume(ROOM)) {
+            // ROOM::<room>::<timestamp>::<sender>::<content>
+            String room = decoder.readUntil(SEP);
+            String ts = room != null ? decoder.readUntil(SEP) : null;
+            String sender = ts != null ? decoder.readUntil(SEP) : null;
+            if (sender != null) {
+                listener.onRoomMessage(room, ts, sender, decoder.readRemaining());
+                return;
+            }
+        }
+        handleLine(decoder.frameAsString());
+    }
+
+    // Reader thread, and the multicast thread for the broadcast lines it hands on.
+    private void handleLine(String inLine) {
+        String[] f;
+        if (inLine.startsWith("SEQ::")) {
+            try { pendingSeq = Long.parseLong(inLine.substring(5).trim()); } catch (NumberFormatException ignored) {}
+        } else if (inLine.startsWith("SESSION::")) {
+            sessionToken = inLine.substring(9).trim();
+        } else if (inLine.startsWith("MCAST::")) {
+            startMulticast(inLine);
+        } else if (inLine.startsWith("REPAIR::")) {
+            MulticastReceiver m = multicast;
+            if (m != null) m.repaired(inLine);
+        } else if (inLine.startsWith("REPAIR_LOST::")) {
+            MulticastReceiver m = multicast;
+            if (m != null) m.lost(inLine);
+        } else if (inLine.startsWith("PING::")) {
+            // server heartbeat: answer so an idle client is not taken for a dead one
+            sendCommand("PONG::");
+        } else if (inLine.startsWith("PONG::")) {
+            // reply to our own PING, nothing to show
+        } else if (inLine.startsWith("SYSTEM::")) {
+            listener.onSystem(inLine.substring(8));
+        } else if (inLine.startsWith("MESSAGE::")) {
+            if ((f = fields(inLine, 9, 3)) != null) listener.onMessage(f[0], f[1], f[2]);
+            else listener.onOther("Malformed MESSAGE: " + inLine);
+        } else if (inLine.startsWith("PRIVATE::")) {
+            // PRIVATE::<timestamp>::<sender>::<content>
+            if ((f = fields(inLine, 9, 3)) != null) listener.onPrivate(f[0], f[1], f[2]);
+            else listener.onOther("Malformed PRIVATE: " + inLine);
+        } else if (inLine.startsWith("ROOM::")) {
+            if ((f = fields(inLine, 6, 4)) != null) listener.onRoomMessage(f[0], f[1], f[2], f[3]);
+            else listener.onOther("Malformed ROOM: " + inLine);
+        } else if (inLine.startsWith("SEARCHHIT::")) {
+            // SEARCHHIT::<timestamp>::<sender>::<where>::<content>
+            if ((f = fields(inLine, 11, 4)) != null) listener.onSearchHit(f[0], f[1], f[2], f[3]);
+            else listener.onOther("Malformed SEARCHHIT: " + inLine);
+        } else if (inLine.startsWith("ROOMLIST::")) {
+            listener.onRoomList(list(inLine.substring(10)));
+        } else if (inLine.startsWith("USERLIST::")) {
+            listener.onUserList(list(inLine.substring(10)));
+        } else if (inLine.startsWith("USERNAME_REJECTED::")) {
+            listener.onOther("Username rejected by server: " + inLine.substring(19));
+        } else {
+            listener.onOther(inLine);
+        }
+    }
+
+    // The n "::"-separated fields of line from index start, the last one taking the rest; null
+    // if there are fewer. (split("::") would run a regex for every line.)
+    private static String[] fields(String line, int start, int n) {
+        String[] f = new String[n];
+        for (int i = 0; i < n - 1; i++) {
+            int sep = line.indexOf("::", start);
+            if (sep < 0) return null;
+            f[i] = line.substring(start, sep);
+            start = sep + 2;
+        }
+        f[n - 1] = line.substring(start);
+        return f;
+    }
+
+    private static List<String> list(String csv) {
+        return csv.isEmpty() ? Collections.emptyList() : Arrays.asList(csv.split(","));
+    }
+
+    // Join the group on the interface our TCP connection uses (so a server on localhost is heard
+    // on loopback). Broadcast lines then come from the receiver thread, in order.
+    private void startMulticast(String mcastLine) {
+        MulticastReceiver old = multicast;
+        if (old != null) old.close();
+        try {
+            NetworkInterface iface = NetworkInterface.getByInetAddress(socket.getLocalAddress());
+            multicast = new MulticastReceiver(mcastLine, iface, line -> {
+                handleLine(line);
+                listener.flush();
+            }, this::sendCommand); // false while reconnecting
+        } catch (IOException | RuntimeException e) {
+            // not a line we understand: have the server send everything over TCP
+            multicast = null;
+            listener.onSystem("Multicast unavailable (" + e.getMessage() + "); using TCP");
+            sendCommand("MCAST_OFF::");
+        }
     }
 
+    // --- console client ---
+
     public static void main(String[] args) {
         String host = null;
         int port = 12345;
-        if (args.length >= 1) host = args[0];
-        if (args.length >= 2) {
-            try { port = Integer.parseInt(args[1]); } catch (NumberFormatException ignored) {}
+        boolean binary = false;
+        boolean resume = false;
+        List<String> positional = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.equals("--binary")) binary = true;
+            else if (arg.equals("--resume")) resume = true;
+            else positional.add(arg);
         }
+        if (positional.size() >= 1) host = positional.get(0);
+        if (positional.size() >= 2) {
+            try { port = Integer.parseInt(positional.get(1)); } catch (NumberFormatException ignored) {}
+        }
+        ConsoleRenderer console = new ConsoleRenderer();
+        BufferedReader stdin = new BufferedReader(new InputStreamReader(System.in));
         try {
-            BufferedReader rdr = new BufferedReader(new InputStreamReader(System.in));
             if (host == null) {
-                System.out.print("Enter server IP (or press ENTER for localhost): ");
-                String h = rdr.readLine();
+                console.prompt("Enter server IP (or press ENTER for localhost): ");
+                String h = stdin.readLine();
                 if (h == null || h.trim().isEmpty()) host = "localhost";
                 else host = h.trim();
             }
@@ -160,7 +500,95 @@ public class ChatClient {
             host = "localhost";
         }
 
-        ChatClient client = new ChatClient(host, port);
-        client.start();
+        ChatClient client = new ChatClient(host, port, binary, resume, console);
+        try {
+            if (!login(client, console, stdin)) {
+                client.close();
+                return;
+            }
+        } catch (IOException e) {
+            console.say(e instanceof EOFException ? e.getMessage() : "Connection error: " + e.getMessage());
+            client.close();
+            return;
+        }
+        // Console input on a daemon thread: when the client closes by itself (the server is gone
+        // for good) main returns, and the JVM exits, even though a console read is pending.
+        Thread input = new Thread(() -> consoleLoop(client, console, stdin), "ConsoleInput");
+        input.setDaemon(true);
+        input.start();
+        try {
+            client.awaitClosed();
+        } catch (InterruptedException ignored) { }
+    }
+
+    // Ask for a username until the server takes one; false at the end of input.
+    private static boolean login(ChatClient client, ConsoleRenderer console, BufferedReader stdin) throws IOException {
+        while (true) {
+            console.prompt("Enter username: ");
+            String name = stdin.readLine();
+            if (name == null) return false;
+            name = name.trim();
+            if (name.isEmpty()) continue;
+            String rejected = client.join(name);
+            if (rejected == null) {
+                console.say("Username accepted" + (client.isBinary() ? " (binary protocol)" : "")
+                        + ". You can now chat. Type /help for client commands.");
+                return true;
+            }
+            console.say("Username rejected: " + rejected);
+        }
+    }
+
+    private static void consoleLoop(ChatClient client, ConsoleRenderer console, BufferedReader stdin) {
+        try {
+            String line;
+            while ((line = stdin.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty()) continue;
+                if (line.equalsIgnoreCase("/exit")) break;
+                if (!handleConsoleLine(client, console, line)) {
+                    console.say("[not sent: connection lost" + (client.isResumable() ? ", reconnecting]" : "]"));
+                }
+            }
+        } catch (IOException e) {
+            // console gone
+        }
+        client.exit();
+    }
+
+    // False if a line for the server could not be sent.
+    private static boolean handleConsoleLine(ChatClient client, ConsoleRenderer console, String line) {
+        if (line.equalsIgnoreCase("/list")) {
+            return client.sendCommand("LIST::");
+        } else if (line.startsWith("/search ")) {
+            return client.sendCommand("SEARCH::" + line.substring(8).trim());
+        } else if (line.equalsIgnoreCase("/rooms")) {
+            return client.sendCommand("ROOMS::");
+        } else if (line.startsWith("/join ")) {
+            return client.sendCommand("JOIN_ROOM::" + line.substring(6).trim());
+        } else if (line.equalsIgnoreCase("/leave") || line.startsWith("/leave ")) {
+            return client.sendCommand("LEAVE_ROOM::" + line.substring(6).trim());
+        } else if (line.startsWith("/w ")) {
+            // Format: /w username message...
+            String rest = line.substring(3).trim();
+            int idx = rest.indexOf(' ');
+            if (idx >= 0) {
+                return client.sendPrivate(rest.substring(0, idx).trim(), rest.substring(idx + 1).trim());
+            }
+            console.say("Usage: /w <username> <message>");
+        } else if (line.equalsIgnoreCase("/help")) {
+            console.say("Client commands:\n"
+                    + "  /w <user> <message>  -> private message\n"
+                    + "  /list                -> show active users\n"
+                    + "  /join <room>         -> join a room and talk there (/join lobby to go back)\n"
+                    + "  /leave [room]        -> leave a room (default: the current one)\n"
+                    + "  /rooms               -> show rooms and member counts\n"
+                    + "  /search <words>      -> search history (filters: from: to: room: type: since: until:)\n"
+                    + "  /exit                -> quit");
+        } else {
+            // Broadcast
+            return client.sendChat(line);
+        }
+        return true;
     }
 }
@@ -0,0 +1,39 @@
+import java.util.List;
+
+// What a ChatClient reports. Calls come from the client's reader thread and, for broadcasts
+// received by multicast, its multicast thread, so implementations must be thread-safe. flush()
+// follows every batch of frames read off the socket: an implementation may buffer its output
+// and write it there, once per batch.
+public interface ChatClientListener {
+    // lobby chat, and system notices the server sends as messages (joins, leaves)
+    default void onMessage(String timestamp, String sender, String text) { }
+
+    default void onPrivate(String timestamp, String sender, String text) { }
+
+    default void onRoomMessage(String room, String timestamp, String sender, String text) { }
+
+    // SYSTEM:: lines: replies to commands, errors, notices
+    default void onSystem(String text) { }
+
+    default void onUserList(List<String> users) { }
+
+    // "name(members)" entries
+    default void onRoomList(List<String> rooms) { }
+
+    // where: "*" for the lobby, "@user" for a private message, "#room"
+    default void onSearchHit(String timestamp, String sender, String where, String text) { }
+
+    // anything the client does not recognise, or could not parse
+    default void onOther(String line) { }
+
+    // the connection dropped and the client is trying to resume the session
+    default void onConnectionLost() { }
+
+    // resumed: nothing was missed; otherwise joined again as a new session
+    default void onReconnected(boolean resumed) { }
+
+    // the client is done: close() or exit() was called, or reconnecting failed
+    default void onClosed() { }
+
+    default void flush() { }
+}
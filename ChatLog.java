@@ -0,0 +1,285 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongConsumer;
+
+// Asynchronous chat log. Handler threads only enqueue a line (lock-free); one writer thread
+// batches lines and commits them to the file when the batch reaches batchBytes or when
+// flushMillis have passed since the oldest uncommitted line. Messages passed with a line are
+// also appended, in the same order, to the binary SegmentedLog if one is attached. At most
+// queueEntries lines wait for the writer: past that, callers with a Message wait for room (the
+// segment log, search index and history depend on it), as does everyone with FSYNC durability;
+// a bare text line is otherwise dropped and counted.
+public class ChatLog {
+    public enum Durability {
+        NONE,     // write to the OS lazily (buffer full or once a second), never fsync
+        BATCHED,  // group commit to the OS every flush interval, no fsync
+        FSYNC     // group commit and force to disk before the next batch
+    }
+
+    private static final byte[] NEWLINE = System.lineSeparator().getBytes(StandardCharsets.UTF_8);
+    private static final long IDLE_PARK_NANOS = 100_000_000L;
+    private static final long RETENTION_CHECK_NANOS = 60_000_000_000L;
+    static final int DEFAULT_QUEUE_ENTRIES = 65536;
+
+    private final FileChannel channel;
+    private final Durability durability;
+    private final long flushNanos;
+    private final ByteBuffer batch;
+    private final SegmentedLog segments; // may be null
+    private final SearchIndex index;     // may be null; fed with what goes into segments
+    private final ConcurrentLinkedQueue<Entry> queue = new ConcurrentLinkedQueue<>();
+    private final Semaphore room;          // one permit per line the queue may still take
+    private final LongAdder dropped = new LongAdder();
+    private final Thread writer;
+    private volatile boolean writerParked;
+    private volatile boolean closing;
+    // written by the writer thread only
+    private volatile long linesWritten;
+    private final LatencyHistogram flushLatency = new LatencyHistogram();
+
+    public ChatLog(Path file, Durability durability, long flushMillis, int batchBytes) throws IOException {
+        this(file, durability, flushMillis, batchBytes, null);
+    }
+
+    public ChatLog(Path file, Durability durability, long flushMillis, int batchBytes,
+                   SegmentedLog segments) throws IOException {
+        this(file, durability, flushMillis, batchBytes, segments, null);
+    }
+
+    public ChatLog(Path file, Durability durability, long flushMillis, int batchBytes,
+                   SegmentedLog segments, SearchIndex index) throws IOException {
+        this(file, durability, flushMillis, batchBytes, segments, index, DEFAULT_QUEUE_ENTRIES);
+    }
+
+    public ChatLog(Path file, Durability durability, long flushMillis, int batchBytes,
+                   SegmentedLog segments, SearchIndex index, int queueEntries) throws IOException {
+        this.room = new Semaphore(Math.max(1, queueEntries));
+        this.segments = segments;
+        this.index = index;
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        this.durability = durability;
+        this.flushNanos = (durability == Durability.NONE ? Math.max(1000, flushMillis) : flushMillis) * 1_000_000L;
+        this.batch = ByteBuffer.allocate(batchBytes);
+        this.writer = new Thread(this::writeLoop, "ChatLogWriter");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    // Called on hot paths: never touches the file, and only blocks when the queue is full.
+    public void append(String line) {
+        append(line, null);
+    }
+
+    // The line is built from m on the writer thread rather than the caller's (see lineOf).
+    public void append(Message m) {
+        append(null, m);
+    }
+
+    // As append(m); stored gets the message's segment log offset once it is written there.
+    public void append(Message m, LongConsumer stored) {
+        enqueue(new Entry(null, m, stored));
+    }
+
+    // Text line plus the structured message it describes (m may be null).
+    public void append(String line, Message m) {
+        enqueue(new Entry(line, m, null));
+    }
+
+    // Runs action on the writer thread once everything appended before this call is in the
+    // segment log, with the offset the next record will get (-1 without a segment log). Keep
+    // it short: the writer waits for it.
+    public void whenWritten(LongConsumer action) {
+        if (!enqueue(new Entry(null, null, action))) action.accept(-1);
+    }
+
+    // False once closing or, for a bare text line, when the queue is full and the line was
+    // dropped. Markers are not counted against the bound: someone is waiting on each of them.
+    private boolean enqueue(Entry e) {
+        if (closing) return false;
+        if (!isMarker(e)) {
+            if (e.message != null || durability == Durability.FSYNC) {
+                room.acquireUninterruptibly();
+            } else if (!room.tryAcquire()) {
+                dropped.increment();
+                return false;
+            }
+        }
+        queue.add(e);
+        if (writerParked) LockSupport.unpark(writer);
+        return true;
+    }
+
+    public long linesWritten() { return linesWritten; }
+
+    // Bare text lines dropped because the writer had fallen queueEntries behind.
+    public long linesDropped() { return dropped.sum(); }
+
+    // Time to hand one batch to the OS (and fsync it, with FSYNC durability).
+    public LatencyHistogram flushLatency() { return flushLatency; }
+
+    // Drain everything still queued, commit it and close the file.
+    public void close() {
+        closing = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Entry e;
+        if (!writer.isAlive()) {
+            // enqueued while the writer was stopping: it is gone, so write them here
+            while ((e = queue.poll()) != null) write(e);
+            commit();
+        }
+        // a writer that would not stop leaves its markers: someone is still waiting on them
+        while ((e = queue.poll()) != null) {
+            if (isMarker(e)) e.then.accept(-1);
+        }
+        try { channel.close(); } catch (IOException ignored) {}
+        if (index != null) index.close();
+        if (segments != null) segments.close();
+    }
+
+    private void writeLoop() {
+        long oldestPending = 0;
+        long retainedAt = System.nanoTime();
+        while (true) {
+            Entry e = queue.poll();
+            if (e != null) {
+                if (!isMarker(e) && batch.position() == 0) oldestPending = System.nanoTime();
+                try {
+                    write(e);
+                } catch (RuntimeException ex) {
+                    // one bad entry must not stop the writer: everything behind it waits on it
+                    System.err.println("Logging error: " + ex);
+                }
+                continue;
+            }
+
+            boolean stop = closing && queue.isEmpty();
+            long waited = System.nanoTime() - oldestPending;
+            if (batch.position() > 0 && (stop || waited >= flushNanos)) {
+                commit();
+            }
+            if (stop) break;
+            if (segments != null && System.nanoTime() - retainedAt >= RETENTION_CHECK_NANOS) {
+                retainedAt = System.nanoTime();
+                retain();
+            }
+
+            // queue empty: sleep until new lines arrive or the pending batch is due
+            writerParked = true;
+            if (queue.isEmpty() && !closing) {
+                LockSupport.parkNanos(batch.position() > 0 ? flushNanos - waited : IDLE_PARK_NANOS);
+            }
+            writerParked = false;
+        }
+    }
+
+    private void write(Entry e) {
+        if (isMarker(e)) {
+            e.then.accept(segments != null ? segments.endOffset() : -1);
+            return;
+        }
+        room.release();
+        String line = e.line != null ? e.line : lineOf(e.message);
+        add(line.getBytes(StandardCharsets.UTF_8));
+        linesWritten++;
+        if (e.message != null && segments != null) appendSegment(e);
+    }
+
+    private static boolean isMarker(Entry e) {
+        return e.line == null && e.message == null;
+    }
+
+    private static String lineOf(Message m) {
+        if (m.getType() == MessageType.PRIVATE) {
+            return "[PRIVATE] " + m.getTimestamp() + " " + m.getSender() + " -> " + m.getRecipient() + ": " + m.getContent();
+        }
+        return m.toString();
+    }
+
+    private void add(byte[] bytes) {
+        if (bytes.length + NEWLINE.length > batch.remaining()) {
+            commit();
+            if (bytes.length + NEWLINE.length > batch.capacity()) {
+                writeFully(ByteBuffer.wrap(bytes));
+                writeFully(ByteBuffer.wrap(NEWLINE));
+                force();
+                return;
+            }
+        }
+        batch.put(bytes).put(NEWLINE);
+        if (!batch.hasRemaining()) commit();
+    }
+
+    private void appendSegment(Entry e) {
+        try {
+            long offset = segments.append(e.message, e.message.getTimestampMillis());
+            if (index != null) index.add(offset, e.message);
+            if (e.then != null) e.then.accept(offset);
+        } catch (IOException | RuntimeException ex) {
+            System.err.println("Segment log error: " + ex);
+        }
+    }
+
+    // Age retention on a quiet log, which otherwise only applies it when a segment rolls.
+    private void retain() {
+        try {
+            segments.retain();
+        } catch (IOException | RuntimeException ex) {
+            System.err.println("Segment log error: " + ex);
+        }
+    }
+
+    private void commit() {
+        if (batch.position() == 0) return;
+        long start = System.nanoTime();
+        batch.flip();
+        writeFully(batch);
+        batch.clear();
+        force();
+        flushLatency.record(System.nanoTime() - start);
+    }
+
+    private void force() {
+        if (durability != Durability.FSYNC) return;
+        if (segments != null) segments.force();
+        try {
+            channel.force(false);
+        } catch (IOException e) {
+            System.err.println("Logging error: " + e.getMessage());
+        }
+    }
+
+    private void writeFully(ByteBuffer buf) {
+        try {
+            while (buf.hasRemaining()) channel.write(buf);
+        } catch (IOException e) {
+            System.err.println("Logging error: " + e.getMessage());
+            buf.position(buf.limit());
+        }
+    }
+
+    private static final class Entry {
+        final String line;
+        final Message message;
+        final LongConsumer then;   // offset callback, or the action of a whenWritten marker
+
+        Entry(String line, Message message, LongConsumer then) {
+            this.line = line;
+            this.message = message;
+            this.then = then;
+        }
+    }
+}
@@ -102,32 +102,253 @@
 
 import java.io.*;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class ChatServer {
     private final int port;
+    private final ServerConfig config;
     private ServerSocket serverSocket;
+    private NioServer nioServer;
     private final ConcurrentMap<String, ClientHandler> clients = new ConcurrentHashMap<>();
     private volatile boolean running = true;
-    private final File logFile = new File("chat_log.txt");
-    private BufferedWriter logWriter;
+    // written by its own thread; handlers only enqueue lines, so there is no lock to pin on
+    private ChatLog chatLog;
+    private SegmentedLog segmentedLog;
+    private SearchIndex searchIndex; // over segmentedLog; null when that is disabled
+    private static final int SEARCH_LIMIT = 20;
+    private Mailboxes mailboxes;    // null when disabled
+    private Cluster cluster;        // null unless --cluster-port or --peers is given
+    private MulticastPublisher multicast; // null unless --multicast is given
+    private final HistoryBuffer history;
+    // Rooms by name; a room exists while it has members. "lobby" is not in here: it is every
+    // connected client, i.e. the clients map itself.
+    private final ConcurrentMap<String, Room> rooms = new ConcurrentHashMap<>();
+    // RESUME sessions by token, parked ones included
+    private final ConcurrentMap<String, Session> sessions = new ConcurrentHashMap<>();
+    private final SecureRandom tokenRandom = new SecureRandom();
+    // usernames interned to small ids for binary clients. Once MAX_SENDER_IDS names have been
+    // seen the table starts over; clients are re-told the name whenever an id they know now
+    // stands for another one (ClientHandler.writeFrame), so a reused id is never misattributed
+    private static final int MAX_SENDER_IDS = 1 << 16;
+    private final ConcurrentMap<String, Integer> senderIds = new ConcurrentHashMap<>();
+    private final AtomicInteger nextSenderId = new AtomicInteger();
+    // disk reads for HISTORY:: requests that reach past the in-memory ring
+    private final ExecutorService historyExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "HistoryReader");
+        t.setDaemon(true);
+        return t;
+    });
+    private ExecutorService handlerExecutor;
+    // runs ClientHandler drain tasks so a stalled socket never blocks the sender
+    private ExecutorService writerExecutor;
+    private final int queueHighWater;
+    private final int queueLimit;
+    private final long slowConsumerGraceMillis;
+    private final ServerMetrics metrics = new ServerMetrics();
+    // written to sockets refused by admission control, then closed
+    static final byte[] SERVER_BUSY = (Utils.buildSystem("Server busy, try again later.") + "\n")
+            .getBytes(StandardCharsets.US_ASCII);
+    // Roster: every membership change bumps the version under rosterLock and pushes a USERDELTA
+    // to subscribed clients, so deltas go out in version order. The encoded USERLIST frame is
+    // cached with the version it was built at and rebuilt only after the roster changed.
+    private final Object rosterLock = new Object();
+    private volatile long rosterVersion;
+    private volatile UserListSnapshot userList;
+    private final Set<ClientHandler> rosterSubscribers = ConcurrentHashMap.newKeySet();
+    private final PresenceNotifier presence;
+    // admission control and per-username rate limits
+    private final AtomicInteger openConnections = new AtomicInteger();
+    private final AtomicInteger pendingHandshakes = new AtomicInteger();
+    private final ConcurrentMap<String, TokenBucket> userBuckets = new ConcurrentHashMap<>();
+    private static final long USER_BUCKET_SWEEP_NANOS = 30_000_000_000L;
+    // idle and handshake timeouts of every connection
+    private final TimerWheel timers = new TimerWheel(100, 512, "ConnectionTimers");
+    // null when broadcasts are delivered on the sender's thread (--fanout-shards=1)
+    private final BroadcastShards fanOutShards;
+    private final AtomicLong evictions = new AtomicLong();
+    private final ConcurrentMap<String, AtomicLong> evictionsByUser = new ConcurrentHashMap<>();
 
     public ChatServer(int port) {
-        this.port = port;
+        this(new ServerConfig().setPort(port));
+    }
+
+    public ChatServer(ServerConfig config) {
+        this.config = config;
+        this.port = config.getPort();
+        this.queueHighWater = config.getQueueHighWater();
+        this.queueLimit = config.getQueueLimit();
+        this.slowConsumerGraceMillis = config.getSlowConsumerGraceMillis();
+        this.history = new HistoryBuffer(config.getHistoryCapacity());
+        this.presence = new PresenceNotifier(this, config.getPresenceWindowMillis());
+        int shards = config.getFanOutShards();
+        this.fanOutShards = shards > 1 ? new BroadcastShards(shards, metrics) : null;
+        this.writerExecutor = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "ClientWriter");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public int getQueueHighWater() { return queueHighWater; }
+
+    public int getQueueLimit() { return queueLimit; }
+
+    public long getSlowConsumerGraceMillis() { return slowConsumerGraceMillis; }
+
+    public Executor getWriterExecutor() { return writerExecutor; }
+
+    public long getEvictionCount() { return evictions.get(); }
+
+    public ServerMetrics metrics() { return metrics; }
+
+    public PresenceNotifier presence() { return presence; }
+
+    public int getClientCount() { return clients.size(); }
+
+    public int getPendingHandshakes() { return pendingHandshakes.get(); }
+
+    public TimerWheel timers() { return timers; }
+
+    public ServerConfig getConfig() { return config; }
+
+    // Called at accept, before a handler exists: reserves a connection and a handshake slot, or
+    // returns false if either cap is reached. The handler releases them (see below).
+    boolean admit() {
+        boolean overConnections = openConnections.incrementAndGet() > config.getMaxConnections();
+        boolean overHandshakes = pendingHandshakes.incrementAndGet() > config.getMaxHandshakes();
+        if (overConnections || overHandshakes) {
+            openConnections.decrementAndGet();
+            pendingHandshakes.decrementAndGet();
+            metrics.connectionsRejected.increment();
+            return false;
+        }
+        return true;
+    }
+
+    void handshakeCompleted() {
+        pendingHandshakes.decrementAndGet();
+    }
+
+    void connectionClosed(boolean joined) {
+        openConnections.decrementAndGet();
+        if (!joined) pendingHandshakes.decrementAndGet();
+    }
+
+    // Shared by every connection of the user, so reconnecting does not refill it; null when
+    // per-user limits are off. Idle buckets are swept by the timer wheel (sweepUserBuckets).
+    TokenBucket userBucket(String username) {
+        if (config.getUserRate() <= 0) return null;
+        return userBuckets.computeIfAbsent(username, u -> new TokenBucket(config.getUserRate(), config.getUserBurst()));
+    }
+
+    // Timer wheel: drop full (idle) buckets, mostly those of departed users, then come back.
+    // A bucket dropped while its user is still on is as good as the fresh one a rejoin gets.
+    private void sweepUserBuckets(long now) {
+        userBuckets.values().removeIf(b -> b.isIdle(now));
+        timers.schedule(this::sweepUserBuckets, USER_BUCKET_SWEEP_NANOS);
+    }
+
+    // Frames waiting in all clients' outbound queues, and the deepest single queue.
+    public long getQueuedFrames() {
+        long total = 0;
+        for (ClientHandler ch : clients.values()) total += ch.getQueuedFrames();
+        return total;
+    }
+
+    public int getMaxQueuedFrames() {
+        int max = 0;
+        for (ClientHandler ch : clients.values()) max = Math.max(max, ch.getQueuedFrames());
+        return max;
+    }
+
+    ChatLog getChatLog() { return chatLog; }
+
+    // Called when a client can't keep up with its outbound queue and is disconnected.
+    void recordEviction(ClientHandler handler, String reason) {
+        evictions.incrementAndGet();
+        String user = handler.getUsername() != null ? handler.getUsername() : "(handshake)";
+        evictionsByUser.computeIfAbsent(user, u -> new AtomicLong()).incrementAndGet();
+        System.out.println("Evicted slow client " + user + ": " + reason);
+        log("EVICTED: " + user + " (" + reason + ") at " + Utils.timestamp());
+    }
+
+    // Clients with queued or dropped frames, worst first, plus eviction totals.
+    public String slowConsumerReport() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Evictions: ").append(evictions.get());
+        evictionsByUser.forEach((u, n) -> sb.append("\n  evicted ").append(u).append(" x").append(n.get()));
+        clients.values().stream()
+                .filter(ch -> ch.getQueuedFrames() > 0 || ch.getDroppedFrames() > 0)
+                .sorted((a, b) -> Integer.compare(b.getQueuedFrames(), a.getQueuedFrames()))
+                .limit(20)
+                .forEach(ch -> sb.append("\n  ").append(ch.getUsername())
+                        .append(": queued=").append(ch.getQueuedFrames())
+                        .append(" dropped=").append(ch.getDroppedFrames()));
+        return sb.toString();
+    }
+
+    // Plug in a custom executor for blocking ClientHandlers (must be set before start()).
+    public void setHandlerExecutor(ExecutorService executor) {
+        this.handlerExecutor = executor;
     }
 
     public void start() {
         try {
+            openLogs();
+            if (config.getUserRate() > 0) timers.schedule(this::sweepUserBuckets, USER_BUCKET_SWEEP_NANOS);
+            if (config.isClustered()) {
+                cluster = new Cluster(this, config.getNodeId());
+                cluster.start(config.getClusterBind(), config.getClusterPort(), config.getPeers());
+                System.out.println("Cluster node " + config.getNodeId() + (config.getClusterPort() > 0
+                        ? ", links on port " + config.getClusterPort() : "") + ", peers " + config.getPeers());
+            }
+            if (config.isMulticast()) {
+                multicast = new MulticastPublisher(config.getMulticastGroup(), config.getMulticastInterface(),
+                        config.getMulticastTtl(), config.getMulticastBuffer(), timers);
+                System.out.println("Multicasting broadcasts to " + multicast.group()
+                        + (config.getMulticastInterface().isEmpty() ? "" : " on " + config.getMulticastInterface()));
+            }
+            if (config.getMetricsPort() > 0) {
+                metrics.startEndpoint(this, config.getMetricsPort());
+                System.out.println("Metrics on http://127.0.0.1:" + config.getMetricsPort() + "/");
+            }
+            if (config.isNio()) {
+                nioServer = new NioServer(this, port, config.getEventLoops());
+                System.out.println("Server started on port " + port);
+                startAdminConsole();
+                nioServer.run();
+                return;
+            }
+
+            if (handlerExecutor == null) {
+                handlerExecutor = HandlerExecutors.create(config.getExecutorMode());
+            }
+            if (HandlerExecutors.isVirtual(handlerExecutor)) {
+                writerExecutor.shutdown();
+                writerExecutor = handlerExecutor;
+            }
             serverSocket = new ServerSocket(port);
-            logWriter = new BufferedWriter(new FileWriter(logFile, true)); // append mode
             System.out.println("Server started on port " + port);
+            System.out.println(threadReport());
             startAdminConsole();
 
             while (running) {
                 Socket clientSocket = serverSocket.accept();
+                if (!admit()) {
+                    refuse(clientSocket);
+                    continue;
+                }
                 // New connection -> create handler (handler will manage username handshake)
-                ClientHandler handler = new ClientHandler(clientSocket, this);
-                new Thread(handler).start();
+                BlockingClientHandler handler = new BlockingClientHandler(clientSocket, this);
+                handlerExecutor.execute(handler);
             }
         } catch (IOException e) {
             if (running) {
@@ -138,58 +359,529 @@ public class ChatServer {
         }
     }
 
-    // Called by ClientHandler after a successful username registration
+    private static void refuse(Socket s) {
+        try {
+            s.getOutputStream().write(SERVER_BUSY);
+        } catch (IOException ignored) {
+        } finally {
+            try { s.close(); } catch (IOException ignored) {}
+        }
+    }
+
+    // Open the text chat log, the segment log and the offline mailboxes. Called by start();
+    // embedders (benchmarks) that never start a listener can call it directly.
+    void openLogs() throws IOException {
+        if (config.isSegmentLogEnabled()) {
+            segmentedLog = new SegmentedLog(Paths.get(config.getSegmentDir()), config.getSegmentBytes(),
+                    config.getRetentionBytes(), config.getRetentionMillis());
+            searchIndex = new SearchIndex(Paths.get(config.getSegmentDir()).resolve("index"), segmentedLog);
+        }
+        chatLog = new ChatLog(Paths.get(config.getLogFile()), config.getLogDurability(), config.getLogFlushMillis(),
+                config.getLogBatchBytes(), segmentedLog, searchIndex, config.getLogQueueEntries()); // append mode
+        if (config.isMailboxEnabled()) {
+            mailboxes = new Mailboxes(Paths.get(config.getMailboxFile()), config.getMailboxMaxMessages(),
+                    config.getMailboxMaxBytes(), config.getMailboxTtlMillis());
+        }
+    }
+
+    // Drain and close both logs and the mailbox store.
+    void closeLogs() {
+        if (chatLog != null) chatLog.close();
+        if (mailboxes != null) mailboxes.close();
+    }
+
+    // Called by ClientHandler after a successful username registration. In a cluster the name
+    // must also be free on every other node.
     public boolean addClient(String username, ClientHandler handler) {
-        ClientHandler previous = clients.putIfAbsent(username, handler);
-        return previous == null;
+        synchronized (rosterLock) {
+            ClientHandler previous = clients.putIfAbsent(username, handler);
+            if (previous != null) return false;
+            if (cluster != null && !cluster.claim(username)) {
+                clients.remove(username);
+                return false;
+            }
+            rosterChanged('+', username);
+        }
+        if (fanOutShards != null) fanOutShards.add(handler);
+        return true;
     }
 
     public void removeClient(String username) {
-        clients.remove(username);
+        ClientHandler handler;
+        synchronized (rosterLock) {
+            handler = clients.remove(username);
+            if (handler == null) return;
+            rosterSubscribers.remove(handler);
+            rosterChanged('-', username);
+        }
+        if (cluster != null) cluster.released(username);
+        if (fanOutShards != null) fanOutShards.remove(handler);
+    }
+
+    // under rosterLock
+    private void rosterChanged(char change, String username) {
+        long version = ++rosterVersion;
+        if (rosterSubscribers.isEmpty()) return;
+        Frame delta = Frame.of(Utils.buildUserDelta(version, change, username));
+        for (ClientHandler ch : rosterSubscribers) ch.send(delta);
+    }
+
+    // RESUME capability: a session the user can pick up again from another connection.
+    Session openSession(ClientHandler handler) {
+        byte[] random = new byte[16];
+        tokenRandom.nextBytes(random);
+        StringBuilder token = new StringBuilder();
+        for (byte b : random) token.append(String.format("%02x", b));
+        Session s = new Session(token.toString(), handler, config.getResumeBuffer());
+        sessions.put(s.token, s);
+        return s;
+    }
+
+    Session findSession(String token) {
+        return sessions.get(token);
+    }
+
+    // The session's connection dropped: the user stays online until the grace period is over.
+    void sessionParked(Session s, long generation) {
+        log("PARKED: " + s.endpoint.getUsername() + " at " + Utils.timestamp());
+        timers.schedule(now -> writerExecutor.execute(() -> {
+            if (s.expire(generation)) {
+                metrics.sessionsExpired.increment();
+                finishSession(s);
+            }
+        }), config.getResumeGraceMillis() * 1_000_000L);
+    }
+
+    void sessionEnded(Session s) {
+        sessions.remove(s.token, s);
+    }
+
+    // A parked session ended without a connection (expired, or kicked): the user leaves now.
+    void finishSession(Session s) {
+        sessionEnded(s);
+        s.last().leaveChat();
     }
 
+    // A user joined or left another node of the cluster.
+    void remoteRosterChanged(char change, String username) {
+        synchronized (rosterLock) {
+            rosterChanged(change, username);
+        }
+    }
+
+    // Another node accepted the same name at about the same time, and got there first.
+    void usernameTakenElsewhere(String username) {
+        ClientHandler ch = clients.get(username);
+        if (ch == null) return;
+        ch.sendRaw(Utils.buildSystem("The name '" + username + "' was taken on another server at the same time; "
+                + "please reconnect with another name."));
+        ch.kickAndClose();
+        log("CLUSTER: dropped duplicate " + username + " at " + Utils.timestamp());
+    }
+
+    // DELTA clients: the current USERLIST, then a USERDELTA for every later change.
+    public void subscribeRoster(ClientHandler handler) {
+        synchronized (rosterLock) {
+            handler.send(userListFrame());
+            rosterSubscribers.add(handler);
+        }
+    }
+
+    // Users on every node of the cluster.
     public String[] getUserList() {
-        return clients.keySet().toArray(new String[0]);
+        if (cluster == null) return clients.keySet().toArray(new String[0]);
+        List<String> names = new ArrayList<>(clients.keySet());
+        names.addAll(cluster.remoteUsers());
+        return names.toArray(new String[0]);
+    }
+
+    private static final class UserListSnapshot {
+        final long version;
+        final Frame frame;
+
+        UserListSnapshot(long version, Frame frame) {
+            this.version = version;
+            this.frame = frame;
+        }
+    }
+
+    // The roster version is read before the map, so a snapshot is never labelled newer than
+    // what it holds; a racing rebuild at worst stores an older snapshot that is rebuilt again.
+    private Frame userListFrame() {
+        long version = rosterVersion;
+        UserListSnapshot cached = userList;
+        if (cached != null && cached.version == version) return cached.frame;
+        Frame frame = Frame.of(Utils.buildUserList(getUserList()));
+        userList = new UserListSnapshot(version, frame);
+        return frame;
     }
 
     public void broadcast(Message m) {
-        String out = Utils.buildBroadcastMessage(m);
-        for (ClientHandler ch : clients.values()) {
-            ch.sendRaw(out);
+        broadcast(m, senderId(m.getSender()));
+    }
+
+    // senderId: the sender's interned id, when the caller already has it
+    public void broadcast(Message m, int senderId) {
+        fanOut(m, senderId);
+        if (cluster != null) cluster.forwardBroadcast(m);
+    }
+
+    // A broadcast forwarded by another node, which has already delivered it to its own clients.
+    void deliverBroadcast(Message m) {
+        fanOut(m, senderId(m.getSender()));
+    }
+
+    private void fanOut(Message m, int senderId) {
+        // encode once, every recipient gets the same bytes
+        long start = System.nanoTime();
+        Frame out = Frame.message(m, senderId, m.getType() == MessageType.SYSTEM);
+        // one datagram for every MCAST client; the loop below skips those that got it
+        long seq = multicast != null ? multicast.publish(out) : -1;
+        if (seq >= 0) metrics.multicastSent.increment();
+        if (fanOutShards != null) {
+            fanOutShards.publish(out, m.getType(), seq); // shard workers count the recipients
+        } else {
+            int recipients = 0;
+            for (ClientHandler ch : clients.values()) {
+                if (ch.viaMulticast(seq)) continue;
+                ch.send(out);
+                recipients++;
+            }
+            metrics.messagesOut(m.getType(), recipients);
+        }
+        metrics.fanOut.record(System.nanoTime() - start);
+        if (isHistoryMessage(m)) {
+            // logged before the ring shows it, so a HISTORY that sees it can wait for its offset
+            HistoryBuffer.Entry kept = new HistoryBuffer.Entry(out);
+            if (chatLog != null) chatLog.append(m, kept::stored);
+            history.add(kept);
+        } else if (chatLog != null) {
+            chatLog.append(m);
+        }
+    }
+
+    // Benchmarks and tests: wait until earlier broadcasts have reached every recipient's queue.
+    void awaitFanOut() throws InterruptedException {
+        if (fanOutShards != null) fanOutShards.awaitIdle();
+    }
+
+    // Fan-out workers, presence and connection timers; shutdown() and embedders (benchmarks).
+    void stopBackgroundThreads() {
+        if (fanOutShards != null) fanOutShards.shutdown();
+        presence.shutdown();
+        timers.stop();
+        if (cluster != null) cluster.shutdown();
+        if (multicast != null) multicast.close();
+    }
+
+    public int senderId(String name) {
+        if (name == null) return -1;
+        Integer id = senderIds.get(name);
+        if (id != null) return id;
+        if (senderIds.size() >= MAX_SENDER_IDS) recycleSenderIds();
+        return senderIds.computeIfAbsent(name, n -> nextSenderId.getAndIncrement());
+    }
+
+    private synchronized void recycleSenderIds() {
+        if (senderIds.size() < MAX_SENDER_IDS) return;
+        senderIds.clear();
+        nextSenderId.set(0);
+    }
+
+    private static boolean isHistoryMessage(Message m) {
+        return m.getType() == MessageType.CHAT && m.getRecipient() == null && m.getRoom() == null;
+    }
+
+    public Room joinRoom(ClientHandler handler, String name) {
+        while (true) {
+            Room room = rooms.computeIfAbsent(name, Room::new);
+            if (room.add(handler)) return room;
+            // emptied and closed between the lookup and the add; drop it and make a new one
+            rooms.remove(name, room);
+        }
+    }
+
+    // Returns false if the handler was not in the room.
+    public boolean leaveRoom(ClientHandler handler, String name) {
+        Room room = rooms.get(name);
+        if (room == null || !room.remove(handler)) return false;
+        if (room.size() == 0) rooms.remove(name, room);
+        return true;
+    }
+
+    public Room getRoom(String name) {
+        return rooms.get(name);
+    }
+
+    // Fan-out to the room's current members only.
+    public void broadcastToRoom(Room room, Message m, int senderId) {
+        long start = System.nanoTime();
+        Frame out = Frame.message(m, senderId, false);
+        ClientHandler[] members = room.members();
+        for (ClientHandler ch : members) ch.send(out);
+        metrics.fanOut.record(System.nanoTime() - start);
+        metrics.messagesOut(m.getType(), members.length);
+        if (chatLog != null) chatLog.append(m);
+    }
+
+    // Room join/leave notices; dropped first when a member is backed up.
+    public void roomNotice(Room room, String text) {
+        Frame out = Frame.of(Utils.buildSystem("#" + room.getName() + ": " + text), true);
+        ClientHandler[] members = room.members();
+        for (ClientHandler ch : members) ch.send(out);
+        metrics.messagesOut(MessageType.SYSTEM, members.length);
+    }
+
+    public void sendRoomListTo(ClientHandler handler) {
+        List<String> names = new ArrayList<>();
+        for (Room r : rooms.values()) names.add(r.getName() + "(" + r.size() + ")");
+        handler.sendRaw(Utils.buildRoomList(names));
+    }
+
+    // Called right after USERNAME_ACCEPTED.
+    public void replayHistoryTo(ClientHandler handler) {
+        if (config.getHistoryOnJoin() > 0) sendHistory(handler, config.getHistoryOnJoin(), false);
+    }
+
+    // HISTORY::<n> - newest n chat messages as one batched write. Whatever the ring doesn't hold
+    // is read from the segment log off the caller's thread, from right before the ring's oldest
+    // entry; frames for the client wait meanwhile so the replay is not overtaken by newer ones.
+    public void sendHistory(ClientHandler handler, int n, boolean explicit) {
+        int wanted = Math.min(n, config.getHistoryMax());
+        if (wanted <= 0) return;
+        List<Frame> recent = new ArrayList<>();
+        HistoryBuffer.Entry oldest = history.latest(wanted, recent);
+        if (recent.size() >= wanted || segmentedLog == null) {
+            Frame batch = historyBatch(recent, explicit);
+            if (batch != null) handler.send(batch);
+            return;
+        }
+        int missing = wanted - recent.size();
+        ClientHandler target = handler.endpoint();
+        target.holdOutput();
+        // the ring's entries all know their offsets once the writer gets past this point
+        chatLog.whenWritten(end -> {
+            try {
+                historyExecutor.execute(() -> {
+                    List<Frame> frames = new ArrayList<>();
+                    long before = oldest != null ? oldest.offset() : end;
+                    try {
+                        if (before >= 0) {
+                            for (Message m : segmentedLog.readBefore(before, missing, ChatServer::isHistoryMessage)) {
+                                frames.add(Frame.message(m, senderId(m.getSender()), false));
+                            }
+                        }
+                    } catch (IOException e) {
+                        System.err.println("History read error: " + e.getMessage());
+                    }
+                    frames.addAll(recent);
+                    target.releaseOutput(historyBatch(frames, explicit));
+                });
+            } catch (RejectedExecutionException e) {
+                target.releaseOutput(null); // shutting down
+            }
+        });
+    }
+
+    private static Frame historyBatch(List<Frame> frames, boolean explicit) {
+        if (frames.isEmpty()) return explicit ? Frame.of(Utils.buildSystem("No earlier messages.")) : null;
+        List<Frame> batch = new ArrayList<>(frames.size() + 1);
+        batch.add(Frame.of(Utils.buildSystem("Last " + frames.size() + " message(s):")));
+        batch.addAll(frames);
+        return Frame.concat(batch);
+    }
+
+    // SEARCH::<query> - newest matches among lobby and system messages, private messages to or
+    // from the asker's name, and the whole history of rooms the asker is in now, including what
+    // was said before it joined (rooms are open to anyone, so this is no access control). Runs
+    // on the history thread.
+    public void search(ClientHandler handler, String query) {
+        if (searchIndex == null) {
+            handler.sendRaw(Utils.buildSystem("Search is not available (segment log disabled)."));
+            return;
+        }
+        SearchIndex.Query q;
+        try {
+            q = SearchIndex.Query.parse(query);
+        } catch (IllegalArgumentException e) {
+            handler.sendRaw(Utils.buildSystem("Invalid search: " + e.getMessage()));
+            return;
+        }
+        String user = handler.getUsername();
+        historyExecutor.execute(() -> {
+            long start = System.nanoTime();
+            List<Frame> frames = new ArrayList<>();
+            try {
+                List<Message> hits = searchIndex.search(q, SEARCH_LIMIT, m -> m.getRoom() != null
+                        ? handler.isInRoom(m.getRoom())
+                        : m.getType() != MessageType.PRIVATE || user.equals(m.getSender()) || user.equals(m.getRecipient()));
+                frames.add(Frame.of(Utils.buildSystem(hits.size() + " match(es) for '" + query.trim() + "' in "
+                        + (System.nanoTime() - start) / 1_000_000 + " ms")));
+                for (Message m : hits) frames.add(Frame.of(Utils.buildSearchHit(m)));
+            } catch (IOException e) {
+                frames.add(Frame.of(Utils.buildSystem("Search failed: " + e.getMessage())));
+            }
+            handler.send(Frame.concat(frames));
+        });
+    }
+
+    // Admin /search: everything, private messages and rooms included.
+    private void adminSearch(String query) {
+        if (searchIndex == null) {
+            System.out.println("Search is not available (segment log disabled).");
+            return;
+        }
+        try {
+            long start = System.nanoTime();
+            List<Message> hits = searchIndex.search(SearchIndex.Query.parse(query), 100, m -> true);
+            for (Message m : hits) {
+                String to = m.getRecipient() != null ? " -> " + m.getRecipient()
+                        : m.getRoom() != null ? " -> #" + m.getRoom() : "";
+                System.out.println("[" + m.getTimestamp() + "] " + m.getType() + " " + m.getSender() + to + ": "
+                        + m.getContent());
+            }
+            System.out.println(hits.size() + " match(es) in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+        } catch (IllegalArgumentException e) {
+            System.out.println("Invalid search: " + e.getMessage());
+        } catch (IOException e) {
+            System.out.println("Search failed: " + e.getMessage());
         }
-        log(m.toString());
     }
 
     public void sendPrivate(Message m, String recipient) {
+        sendPrivate(m, senderId(m.getSender()), recipient);
+    }
+
+    public void sendPrivate(Message m, int senderId, String recipient) {
         ClientHandler ch = clients.get(recipient);
         if (ch != null) {
-            ch.sendRaw(Utils.buildPrivateMessage(m));
-            // also log private message (indicate recipient)
-            log("[PRIVATE] " + m.getTimestamp() + " " + m.getSender() + " -> " + recipient + ": " + m.getContent());
+            ch.send(Frame.message(m, senderId, false));
+            metrics.messagesOut(MessageType.PRIVATE, 1);
+            // also log private message (the log line names the recipient)
+            if (chatLog != null) chatLog.append(m);
+            return;
+        }
+        if (cluster != null && cluster.forwardPrivate(m)) {
+            if (chatLog != null) chatLog.append(m);
+            return;
+        }
+        String reply;
+        if (mailboxes == null || !mailboxes.knows(recipient)) {
+            reply = "User '" + recipient + "' not found or offline.";
+        } else if (deposit(m)) {
+            reply = "User '" + recipient + "' is offline; the message will be delivered when they join.";
+            if (chatLog != null) chatLog.append(m);
+            metrics.mailDeposited.increment();
+            // they may have joined, and emptied their mailbox, while this was being stored
+            ClientHandler joined = clients.get(recipient);
+            if (joined != null) deliverMail(joined);
         } else {
-            // If recipient not found, send a system message back to sender
-            ClientHandler senderHandler = clients.get(m.getSender());
-            if (senderHandler != null) {
-                senderHandler.sendRaw(Utils.buildSystem("User '" + recipient + "' not found or offline."));
-            }
+            reply = "User '" + recipient + "' is offline and their mailbox is full.";
         }
+        ClientHandler senderHandler = clients.get(m.getSender());
+        if (senderHandler != null) senderHandler.sendRaw(Utils.buildSystem(reply));
     }
 
-    public void sendUserListTo(ClientHandler handler) {
-        String[] users = getUserList();
-        handler.sendRaw(Utils.buildUserList(users));
+    // A private message forwarded by the node its sender is on.
+    void deliverPrivate(Message m) {
+        ClientHandler ch = clients.get(m.getRecipient());
+        if (ch != null) {
+            ch.send(Frame.message(m, senderId(m.getSender()), false));
+            metrics.messagesOut(MessageType.PRIVATE, 1);
+        } else if (mailboxes != null && mailboxes.knows(m.getRecipient()) && deposit(m)) {
+            metrics.mailDeposited.increment(); // left this node while the message was on its way
+        }
+        if (chatLog != null) chatLog.append(m);
     }
 
-    public void log(String line) {
-        synchronized (logWriter) {
+    private boolean deposit(Message m) {
+        try {
+            return mailboxes.deposit(m);
+        } catch (IOException e) {
+            System.err.println("Mailbox write error: " + e.getMessage());
+            return false;
+        }
+    }
+
+    // Hand a user everything that arrived while they were offline, as one batched write. Runs
+    // on the history thread, after any history replay queued by the same JOIN. Also marks the
+    // name as one that mail may be kept for from now on.
+    public void deliverMail(ClientHandler handler) {
+        if (mailboxes == null) return;
+        String user = handler.getUsername();
+        try {
+            mailboxes.seen(user);
+        } catch (IOException e) {
+            System.err.println("Mailbox write error: " + e.getMessage());
+        }
+        historyExecutor.execute(() -> {
+            List<Message> mail;
             try {
-                logWriter.write(line);
-                logWriter.newLine();
-                logWriter.flush();
+                mail = mailboxes.take(user);
             } catch (IOException e) {
-                System.err.println("Logging error: " + e.getMessage());
+                System.err.println("Mailbox read error: " + e.getMessage());
+                return;
             }
+            if (mail.isEmpty()) return;
+            List<Frame> frames = new ArrayList<>(mail.size() + 1);
+            frames.add(Frame.of(Utils.buildSystem(mail.size() + " private message(s) arrived while you were offline:")));
+            for (Message m : mail) frames.add(Frame.message(m, senderId(m.getSender()), false));
+            handler.send(Frame.concat(frames));
+            metrics.messagesOut(MessageType.PRIVATE, mail.size());
+            log("MAILBOX: delivered " + mail.size() + " to " + user + " at " + Utils.timestamp());
+        });
+    }
+
+    // JOIN with MCAST: tell the client the group and the first broadcast it gets from there.
+    // Without --multicast the capability is ignored and everything stays on TCP.
+    public void joinMulticast(ClientHandler handler) {
+        if (multicast != null) handler.sendRaw(multicast.enroll(handler));
+    }
+
+    // NACK::<from>::<to> - resend broadcasts a client missed, over its TCP connection.
+    public void repairMulticast(ClientHandler handler, long from, long to) {
+        Frame repair = multicast != null ? multicast.repair(from, to) : null;
+        if (repair == null) return;
+        metrics.multicastRepairs.increment();
+        handler.send(repair);
+    }
+
+    // MCAST_OFF::<next expected> - multicast does not reach this client: later broadcasts go to
+    // its endpoint over TCP, and the ones it was still waiting for are repaired.
+    public void leaveMulticast(ClientHandler endpoint, ClientHandler handler, long expected) {
+        if (multicast == null) return;
+        long first = multicast.withdraw(endpoint);
+        // the client's receiver has stopped and will not NACK again, so send every chunk now
+        for (long from = expected; from < first; from += MulticastPublisher.MAX_REPAIR) {
+            repairMulticast(handler, from, Math.min(first - 1, from + MulticastPublisher.MAX_REPAIR - 1));
         }
+        log("MCAST_OFF: " + handler.getUsername() + " at " + Utils.timestamp());
+    }
+
+    public void sendUserListTo(ClientHandler handler) {
+        handler.send(userListFrame());
+    }
+
+    public void log(String line) {
+        if (chatLog != null) chatLog.append(line);
+    }
+
+    // Log a line that describes a message; the message itself also goes to the segment log.
+    public void log(String line, Message m) {
+        if (chatLog != null) chatLog.append(line, m);
+    }
+
+    public String threadReport() {
+        if (nioServer != null) {
+            return "Execution: NIO event loops, " + clients.size() + " client(s)";
+        }
+        if (handlerExecutor != null && HandlerExecutors.isVirtual(handlerExecutor)) {
+            return "Execution: virtual threads, " + clients.size() + " client(s), carrier threads in use: "
+                    + HandlerExecutors.carrierThreadCount() + " (max " + HandlerExecutors.carrierParallelism() + ")";
+        }
+        String mode = config.getExecutorMode().equalsIgnoreCase("virtual") ? "platform" : config.getExecutorMode();
+        return "Execution: " + mode + " threads, " + clients.size() + " client(s), live threads: "
+                + java.lang.management.ManagementFactory.getThreadMXBean().getThreadCount();
     }
 
     // Server admin console for commands like /kick and /shutdown
@@ -202,7 +894,7 @@ public class ChatServer {
                     if (cmd.trim().isEmpty()) continue;
                     if (cmd.equalsIgnoreCase("/shutdown")) {
                         System.out.println("Shutting down server...");
-                        broadcast(new Message("SERVER", null, "Server is shutting down.", MessageType.SYSTEM, Utils.timestamp()));
+                        broadcast(new Message("SERVER", null, "Server is shutting down.", MessageType.SYSTEM, Utils.currentTimeMillis()));
                         shutdown();
                     } else if (cmd.startsWith("/kick ")) {
                         String[] parts = cmd.split("\\s+", 2);
@@ -214,8 +906,18 @@ public class ChatServer {
                         }
                     } else if (cmd.equalsIgnoreCase("/list")) {
                         System.out.println("Active users: " + String.join(", ", getUserList()));
+                    } else if (cmd.equalsIgnoreCase("/slow")) {
+                        System.out.println(slowConsumerReport());
+                    } else if (cmd.equalsIgnoreCase("/threads")) {
+                        System.out.println(threadReport());
+                    } else if (cmd.equalsIgnoreCase("/stats")) {
+                        System.out.print(metrics.render(this));
+                    } else if (cmd.equalsIgnoreCase("/nodes")) {
+                        System.out.println(cluster != null ? cluster.report() : "Not part of a cluster.");
+                    } else if (cmd.startsWith("/search ")) {
+                        adminSearch(cmd.substring(8));
                     } else if (cmd.equalsIgnoreCase("/help")) {
-                        System.out.println("Admin commands: /kick <user>, /list, /shutdown, /help");
+                        System.out.println("Admin commands: /kick <user>, /list, /slow, /threads, /stats, /search <query>, /nodes, /shutdown, /help");
                     } else {
                         System.out.println("Unknown admin command. Type /help");
                     }
@@ -250,16 +952,23 @@ public class ChatServer {
         } catch (IOException ignored) { }
 
         // Disconnect all clients
+        Frame bye = Frame.of(Utils.buildSystem("Server is shutting down."));
         for (ClientHandler ch : clients.values()) {
-            ch.sendRaw(Utils.buildSystem("Server is shutting down."));
+            ch.send(bye);
             ch.kickAndClose();
         }
         clients.clear();
-
-        // close log
-        try {
-            if (logWriter != null) logWriter.close();
-        } catch (IOException ignored) { }
+        if (nioServer != null) nioServer.close();
+        metrics.stopEndpoint();
+        // give drain tasks a moment to deliver the shutdown notice
+        writerExecutor.shutdown();
+        try { writerExecutor.awaitTermination(1, TimeUnit.SECONDS); } catch (InterruptedException ignored) { }
+        if (handlerExecutor != null) handlerExecutor.shutdown();
+        stopBackgroundThreads();
+
+        // drain and close log
+        historyExecutor.shutdownNow();
+        closeLogs();
 
         System.out.println("Server terminated.");
         // exit JVM only if started as a standalone server (safe guard)
@@ -267,11 +976,21 @@ public class ChatServer {
     }
 
     public static void main(String[] args) {
-        int port = 12345;
-        if (args.length >= 1) {
-            try { port = Integer.parseInt(args[0]); } catch (NumberFormatException ignored) {}
+        for (String arg : args) {
+            if (arg.equals("--help")) {
+                System.out.println(ServerConfig.usage());
+                return;
+            }
+        }
+        ServerConfig config = ServerConfig.fromArgs(args);
+        try {
+            config.validate();
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(ServerConfig.usage());
+            System.exit(2);
         }
-        ChatServer server = new ChatServer(port);
+        ChatServer server = new ChatServer(config);
         server.start();
     }
 }
@@ -1,183 +1,716 @@
-import java.io.*;
-import java.net.*;
-
-public class ClientHandler implements Runnable {
-    private final Socket socket;
-    private final ChatServer server;
-    private PrintWriter out;
-    private BufferedReader in;
-    private String username;
-    private volatile boolean active = true;
-
-    public ClientHandler(Socket socket, ChatServer server) {
-        this.socket = socket;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// One client connection's protocol state: handshake, commands, limits, timeouts and the
+// outbound queue. Transport-agnostic; BlockingClientHandler (a thread per connection) and
+// NioClientHandler (an event loop) supply reading, writing and closing.
+public abstract class ClientHandler {
+    // JOIN capability: get USERDELTA pushes instead of polling LIST::
+    static final String DELTA_CAPABILITY = "DELTA";
+    // JOIN capability: get a SESSION token and SEQ-numbered frames, and RESUME after a drop
+    static final String RESUME_CAPABILITY = "RESUME";
+    // JOIN capability: receive lobby broadcasts by UDP multicast when the server sends them
+    static final String MULTICAST_CAPABILITY = "MCAST";
+    // JOIN capability: the client answers PING::, so it may be reaped once silent too long
+    static final String HEARTBEAT_CAPABILITY = "PING";
+    private static final byte[] MSG = "MSG::".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] PMSG = "PMSG::".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] SEP = "::".getBytes(StandardCharsets.US_ASCII);
+    private static final int ANNOUNCED_SLOTS = 512;   // power of two
+
+    protected final ChatServer server;
+    protected final ServerMetrics metrics;
+    // inbound bytes -> text lines, or binary frames once BIN1 is negotiated
+    protected final FrameDecoder decoder;
+    // inbound limits: every frame on this connection, and messages by this username
+    private final TokenBucket connectionBucket;
+    private TokenBucket userBucket;
+    // told the client about the current run of frames dropped by that bucket
+    private boolean connectionThrottled;
+    private boolean userThrottled;
+    // heartbeat: nanoTime of the last inbound frame; the timer wheel PINGs and reaps from it
+    private final long connectedAt = System.nanoTime();
+    private volatile long lastInbound = connectedAt;
+    private long pingedFor = -1;   // lastInbound value a PING was sent for (timer thread only)
+    // joined with PING: only such clients (and sockets still in the handshake) are idle-reaped,
+    // so clients that predate heartbeats are never dropped for being quiet. Set before username.
+    private volatile boolean heartbeat;
+    private volatile TimerWheel.Timeout timeout;
+    // set by the handshake, read by the timer wheel's checkTimeouts
+    private volatile String username;
+    private int senderId = -1;   // interned id of username, resolved once at join
+    // rooms this client is in, and where plain MSG:: goes (null = lobby, i.e. everyone)
+    private final Set<String> rooms = ConcurrentHashMap.newKeySet();
+    private volatile String currentRoom;
+    protected volatile boolean active = true;
+    // resumable login, shared with the connections that resume it; null for plain clients
+    private volatile Session session;
+    private volatile boolean endSession;   // EXIT or kick: do not keep the session for a resume
+    // broadcasts numbered [multicastFrom, multicastUntil) reach this client by multicast only
+    private volatile long multicastFrom = Long.MAX_VALUE;
+    private volatile long multicastUntil = Long.MAX_VALUE;
+
+    // Outbound queue: senders never touch the socket, they enqueue and schedule a drain
+    private final ConcurrentLinkedQueue<Frame> outbound = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicBoolean evicted = new AtomicBoolean();
+    private final AtomicLong droppedFrames = new AtomicLong();
+    private volatile long overHighWaterSince;
+    // While a history replay is read from disk, frames for this client wait in `held` so the
+    // replay reaches it before anything newer. Guarded by holdLock.
+    private final Object holdLock = new Object();
+    private ArrayList<Frame> held;
+    private int holds;
+    private volatile boolean holding;
+
+    // Writer side (touched only by the one running drain): wire format, and a direct-mapped
+    // cache of the sender id -> name pairs this client has been told. A miss only costs another
+    // SENDER frame, and an id the server has since reused for another name is a miss, so the
+    // cache stays small however many names pass through.
+    private boolean binaryOut;
+    private final int[] announcedIds = new int[ANNOUNCED_SLOTS];
+    private final String[] announcedNames = new String[ANNOUNCED_SLOTS];
+
+    protected ClientHandler(ChatServer server) {
         this.server = server;
+        this.metrics = server.metrics();
+        ServerConfig config = server.getConfig();
+        this.decoder = new FrameDecoder(1024, config.getMaxLineBytes());
+        this.connectionBucket = config.getConnectionRate() > 0
+                ? new TokenBucket(config.getConnectionRate(), config.getConnectionBurst()) : null;
+        metrics.connectionsOpened.increment();
     }
 
-    public void sendRaw(String s) {
-        if (out != null) {
-            out.println(s);
-        }
-    }
-
-    public void kickAndClose() {
-        active = false;
-        try { socket.close(); } catch (IOException ignored) {}
-    }
-
-    @Override
-    public void run() {
-        try {
-            out = new PrintWriter(socket.getOutputStream(), true);
-            in  = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-
-            // Handshake - expect: "JOIN::<username>"
-            while (active && (username == null)) {
-                String line = in.readLine();
-                if (line == null) {
-                    active = false;
-                    break;
-                }
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
+    public String getUsername() { return username; }
 
+    public int getQueuedFrames() { return queued.get(); }
 
+    public boolean isInRoom(String room) { return rooms.contains(room); }
 
+    boolean isActive() { return active; }
 
+    // Fan-out skips broadcast number seq (-1: not multicast) for a client that got it by multicast.
+    boolean viaMulticast(long seq) {
+        return seq >= multicastFrom && seq < multicastUntil;
+    }
 
+    void multicastFrom(long seq) { multicastFrom = seq; }
 
+    void multicastUntil(long seq) { multicastUntil = seq; }
 
+    // What the rest of the server knows this user as: the handler that first joined, which
+    // stays registered for as long as the user's session lasts.
+    ClientHandler endpoint() {
+        Session s = session;
+        return s != null ? s.endpoint : this;
+    }
 
+    public long getDroppedFrames() { return droppedFrames.get(); }
 
+    public void sendRaw(String s) {
+        send(Frame.of(s));
+    }
 
+    // Connection-level frames (heartbeats, rate-limit notices) go straight to this connection:
+    // a session does not number them or keep them for a resume.
+    private void sendControl(String s) {
+        if (!active) return;
+        Frame frame = Frame.of(s);
+        if (admit(frame)) enqueue(frame);
+    }
 
+    // Queue an already-encoded frame; broadcast passes the same Frame to every handler.
+    // Never blocks: over the high-water mark low-priority frames are dropped, and a client
+    // that stays over it (or hits the hard limit) is evicted.
+    public void send(Frame frame) {
+        if (holding && hold(frame)) return;
+        deliver(frame);
+    }
 
+    private void deliver(Frame frame) {
+        Session s = session;
+        if (s != null) {
+            s.deliver(frame); // numbered, kept for a resume, and passed to the current connection
+            return;
+        }
+        if (!active) return;
+        if (admit(frame)) enqueue(frame);
+    }
 
+    private boolean hold(Frame frame) {
+        synchronized (holdLock) {
+            if (held == null) return false;
+            if (frame.isDroppable() && held.size() >= server.getQueueHighWater()) {
+                droppedFrames.incrementAndGet();
+            } else {
+                held.add(frame);
+            }
+            return true;
+        }
+    }
 
+    // Frames sent from now on wait until the matching releaseOutput.
+    void holdOutput() {
+        synchronized (holdLock) {
+            if (held == null) held = new ArrayList<>();
+            holds++;
+            holding = true;
+        }
+    }
 
+    // Send first (if not null), then whatever was held meanwhile.
+    void releaseOutput(Frame first) {
+        synchronized (holdLock) {
+            if (first != null) deliver(first);
+            for (Frame f : held) deliver(f);
+            held.clear();
+            if (--holds == 0) {
+                held = null;
+                holding = false;
+            }
+        }
+    }
 
+    // Back-pressure check for one frame: false if it was dropped or the client evicted.
+    boolean admit(Frame frame) {
+        int depth = queued.get();
+        if (depth >= server.getQueueHighWater()) {
+            if (frame.isDroppable()) {
+                droppedFrames.incrementAndGet();
+                return false;
+            }
+            long now = System.currentTimeMillis();
+            if (overHighWaterSince == 0) {
+                overHighWaterSince = now;
+            } else if (now - overHighWaterSince >= server.getSlowConsumerGraceMillis()) {
+                evictSlowConsumer("over high-water mark for " + (now - overHighWaterSince) + " ms");
+                return false;
+            }
+            if (depth >= server.getQueueLimit()) {
+                evictSlowConsumer("outbound queue full (" + depth + " frames)");
+                return false;
+            }
+        }
+        return true;
+    }
 
+    void enqueue(Frame frame) {
+        outbound.add(frame);
+        queued.incrementAndGet();
+        scheduleDrain();
+    }
 
+    // Next frame for the writer, or null when the queue is empty.
+    protected Frame pollOutbound() {
+        Frame f = outbound.poll();
+        if (f != null && queued.decrementAndGet() < server.getQueueHighWater()) {
+            overHighWaterSince = 0;
+        }
+        return f;
+    }
 
+    protected boolean hasOutbound() {
+        return !outbound.isEmpty();
+    }
 
+    protected void clearOutbound() {
+        outbound.clear();
+        queued.set(0);
+    }
 
+    // Get the queued frames written (through writeFrame) without blocking the caller.
+    protected abstract void scheduleDrain();
 
+    // Writer side: put one frame on the wire in this client's format. Binary clients learn a
+    // sender's name before the first of its messages that reaches them under that id. Batches go part by part,
+    // so each part's shared bytes are written as they are rather than copied into one array.
+    protected final void writeFrame(Frame f) throws IOException {
+        if (f.isBatch()) {
+            for (Frame part : f.parts()) writeFrame(part);
+            return;
+        }
+        int sender = f.getSenderId();
+        if (binaryOut && sender >= 0 && !announced(sender, f.getSenderName())) {
+            byte[] announce = BinaryProtocol.encodeSender(sender, f.getSenderName());
+            writeBytes(announce);
+            metrics.bytesOut.add(announce.length);
+        }
+        writeShared(f, binaryOut);
+        metrics.bytesOut.add(f.bytes(binaryOut).length);
+        if (f.isBinarySwitch()) binaryOut = true;
+    }
 
+    // True if the client already knows id as name; otherwise records that it is about to.
+    private boolean announced(int id, String name) {
+        int slot = id & (ANNOUNCED_SLOTS - 1);
+        if (announcedNames[slot] != null && announcedIds[slot] == id && announcedNames[slot].equals(name)) return true;
+        announcedIds[slot] = id;
+        announcedNames[slot] = name;
+        return false;
+    }
 
+    // bytes built for this client only
+    protected abstract void writeBytes(byte[] bytes) throws IOException;
 
+    // bytes shared with every other recipient of the frame
+    protected abstract void writeShared(Frame f, boolean binary) throws IOException;
 
+    private void evictSlowConsumer(String reason) {
+        if (!evicted.compareAndSet(false, true)) return;
+        server.recordEviction(this, reason);
+        abort();
+    }
 
+    // Close immediately, discarding anything still queued.
+    protected abstract void abort();
 
+    // Another connection resumed this one's session; close without touching the session.
+    void abortReplaced() {
+        abort();
+    }
 
+    // A kick is meant for the user, not a connection: the endpoint of a session that has moved
+    // on passes it to the current connection, or ends the session if it is parked.
+    protected final boolean kickOwnerInstead() {
+        endSession = true;
+        Session s = session;
+        if (s == null) return false;
+        ClientHandler owner = s.owner();
+        if (owner == this) return false;
+        if (owner != null) {
+            owner.kickAndClose();
+        } else if (s.end(null)) {
+            server.finishSession(s);
+        }
+        return true;
+    }
 
+    // Close once already-queued frames (e.g. a kick notice) have been written.
+    public abstract void kickAndClose();
+
+    // Process the decoder's current frame. Shared by the blocking and NIO transports.
+    // Returns false when the connection should be closed.
+    protected boolean handleFrame() throws IOException {
+        long start = System.nanoTime();
+        lastInbound = start;
+        if (connectionBucket != null) {
+            if (!connectionBucket.tryAcquire(start)) {
+                connectionThrottled = rateLimited(connectionThrottled);
+                return true;
+            }
+            connectionThrottled = false;
+        }
+        try {
+            return dispatchFrame();
+        } finally {
+            metrics.frameHandling.record(System.nanoTime() - start);
+        }
+    }
 
+    // Chat and private messages are dispatched on their prefix/opcode straight from the decoder
+    // buffer: the content is copied out as UTF-8 and never becomes a String on this thread.
+    private boolean dispatchFrame() throws IOException {
+        if (!decoder.isBinary()) {
+            if (username != null) {
+                if (decoder.consume(MSG)) {
+                    onChat(decoder.readRemainingBytes());
+                    return true;
+                }
+                if (decoder.consume(PMSG)) {
+                    // PMSG::<recipient>::<message>
+                    String recipient = decoder.readUntil(SEP);
+                    if (recipient != null) {
+                        onPrivate(recipient, decoder.readRemainingBytes());
+                    } else {
+                        sendRaw(Utils.buildSystem("Invalid private message format. Use: PMSG::recipient::message"));
+                    }
+                    return true;
+                }
+            }
+            return handleLine(decoder.frameAsString());
+        }
+        int op = decoder.opcode();
+        if (op == BinaryProtocol.OP_CHAT) {
+            onChat(decoder.readRemainingBytes());
+        } else if (op == BinaryProtocol.OP_PRIVATE) {
+            String recipient = decoder.readString((int) decoder.readVarint());
+            onPrivate(recipient, decoder.readRemainingBytes());
+        } else if (op == BinaryProtocol.OP_ROOM) {
+            String room = decoder.readString((int) decoder.readVarint());
+            onRoomChat(room, decoder.readRemainingBytes());
+        } else if (op == BinaryProtocol.OP_COMMAND) {
+            return handleLine(decoder.readRemaining());
+        } else {
+            sendRaw(Utils.buildSystem("Unknown binary opcode " + op));
+        }
+        return true;
+    }
 
+    protected boolean handleLine(String line) {
+        if (line.startsWith("PING::")) {
+            sendControl("PONG::");
+            return true;
+        }
+        if (line.startsWith("PONG::")) return true; // lastInbound is all a PONG is for
+        if (username == null) {
+            metrics.messageIn(MessageType.COMMAND);
+            handleHandshake(line);
+            return true;
+        }
+        return handleCommand(line);
+    }
 
+    // Handshake - expect: "JOIN::<username>[::<capability>,...]"; BIN1 asks for binary framing,
+    // DELTA for roster updates, RESUME for a resumable session, MCAST for multicast broadcasts
+    private void handleHandshake(String line) {
+        if (line.startsWith("JOIN::")) {
+            String requested = line.substring(6);
+            String caps = "";
+            int sep = requested.indexOf("::");
+            if (sep >= 0) {
+                caps = requested.substring(sep + 2);
+                requested = requested.substring(0, sep);
+            }
+            requested = requested.trim();
+            if (requested.isEmpty()) {
+                metrics.joinsRejected.increment();
+                sendRaw("USERNAME_REJECTED::Empty username");
+            } else if (!Utils.isValidUsername(requested)) {
+                metrics.joinsRejected.increment();
+                sendRaw("USERNAME_REJECTED::" + Utils.USERNAME_RULES);
+            } else if (server.addClient(requested, this)) {
+                metrics.joins.increment();
+                server.handshakeCompleted();
+                heartbeat = hasCapability(caps, HEARTBEAT_CAPABILITY);
+                username = requested;
+                senderId = server.senderId(username);
+                userBucket = server.userBucket(username);
+                if (hasCapability(caps, BinaryProtocol.VERSION)) {
+                    send(Frame.switchToBinary("USERNAME_ACCEPTED::" + BinaryProtocol.VERSION));
+                    decoder.switchToBinary();
+                } else {
+                    sendRaw("USERNAME_ACCEPTED");
+                }
+                if (hasCapability(caps, RESUME_CAPABILITY) && server.getConfig().getResumeGraceMillis() > 0) {
+                    Session s = server.openSession(this);
+                    sendRaw("SESSION::" + s.token); // the last unnumbered frame
+                    session = s;
+                }
+                if (hasCapability(caps, DELTA_CAPABILITY)) server.subscribeRoster(this);
+                if (hasCapability(caps, MULTICAST_CAPABILITY)) server.joinMulticast(this);
+                server.replayHistoryTo(this);
+                server.deliverMail(this);
+                // Notify others
+                server.presence().joined(username);
+            } else {
+                metrics.joinsRejected.increment();
+                sendRaw("USERNAME_REJECTED::Username already taken");
+            }
+        } else if (line.startsWith("RESUME::")) {
+            resume(line);
+        } else {
+            metrics.joinsRejected.increment();
+            sendRaw("USERNAME_REJECTED::Protocol error; send JOIN::<username>");
+        }
+    }
 
+    // RESUME::<token>::<last SEQ received>[::<capability>,...] - take over a session whose
+    // connection dropped (or is about to be found dead) and get the frames it missed.
+    private void resume(String line) {
+        String[] parts = line.split("::", 4);
+        Session s = parts.length >= 3 ? server.findSession(parts[1].trim()) : null;
+        long lastSeq = -1;
+        try {
+            if (s != null) lastSeq = Long.parseLong(parts[2].trim());
+        } catch (NumberFormatException ignored) { }
+        if (s == null || lastSeq < 0) {
+            metrics.joinsRejected.increment();
+            sendRaw("RESUME_FAILED::Unknown or expired session");
+            return;
+        }
+        // take the user's state over before the session can route anything here
+        ClientHandler from = s.last();
+        heartbeat = from.heartbeat;
+        username = from.username;
+        senderId = from.senderId;
+        userBucket = from.userBucket;
+        rooms.addAll(from.rooms);
+        currentRoom = from.currentRoom;
+        session = s;
+        boolean binary = parts.length == 4 && hasCapability(parts[3], BinaryProtocol.VERSION);
+        Frame reply = binary ? Frame.switchToBinary("RESUMED::" + BinaryProtocol.VERSION) : Frame.of("RESUMED");
+        if (!s.resume(this, lastSeq, reply)) {
+            session = null;
+            username = null;
+            userBucket = null;
+            rooms.clear();
+            currentRoom = null;
+            metrics.joinsRejected.increment();
+            sendRaw("RESUME_FAILED::Too far behind or expired; join again");
+            return;
+        }
+        if (binary) decoder.switchToBinary();
+        server.handshakeCompleted();
+        metrics.sessionsResumed.increment();
+        server.log("RESUMED: " + username + " after seq " + lastSeq + " at " + Utils.timestamp());
+    }
 
+    private static boolean hasCapability(String caps, String cap) {
+        for (String c : caps.split(",")) {
+            if (c.trim().equalsIgnoreCase(cap)) return true;
+        }
+        return false;
+    }
 
+    // Main protocol - expect: MSG::<text>, PMSG::<recipient>::<text>, LIST::, HISTORY::<n>, EXIT::,
+    // JOIN_ROOM::<room>, LEAVE_ROOM::[room], ROOM_MSG::<room>::<text>, ROOMS::, SEARCH::<query>,
+    // NACK::<from>::<to>, MCAST_OFF::<next expected>
+    // (MSG and PMSG lines are normally dispatched in handleFrame before reaching here)
+    private boolean handleCommand(String input) {
+        if (input.startsWith("MSG::")) {
+            onChat(input.substring(5).getBytes(StandardCharsets.UTF_8));
+        } else if (input.startsWith("PMSG::")) {
+            // PMSG::<recipient>::<message>
+            String payload = input.substring(6);
+            int sep = payload.indexOf("::");
+            if (sep >= 0) {
+                onPrivate(payload.substring(0, sep), payload.substring(sep + 2).getBytes(StandardCharsets.UTF_8));
+            } else {
+                sendRaw(Utils.buildSystem("Invalid private message format. Use: PMSG::recipient::message"));
+            }
+        } else if (input.startsWith("ROOM_MSG::")) {
+            String payload = input.substring(10);
+            int sep = payload.indexOf("::");
+            if (sep >= 0) {
+                onRoomChat(payload.substring(0, sep), payload.substring(sep + 2).getBytes(StandardCharsets.UTF_8));
+            } else {
+                sendRaw(Utils.buildSystem("Invalid room message format. Use: ROOM_MSG::room::message"));
+            }
+        } else if (input.startsWith("JOIN_ROOM::")) {
+            metrics.messageIn(MessageType.COMMAND);
+            joinRoom(input.substring(11).trim());
+        } else if (input.startsWith("LEAVE_ROOM::")) {
+            metrics.messageIn(MessageType.COMMAND);
+            String name = input.substring(12).trim();
+            leaveRoom(name.isEmpty() ? currentRoom : name);
+        } else if (input.startsWith("ROOMS::")) {
+            metrics.messageIn(MessageType.COMMAND);
+            server.sendRoomListTo(this);
+        } else if (input.startsWith("LIST::")) {
+            metrics.messageIn(MessageType.COMMAND);
+            server.sendUserListTo(this);
+        } else if (input.startsWith("SEARCH::")) {
+            metrics.messageIn(MessageType.COMMAND);
+            server.search(this, input.substring(8));
+        } else if (input.startsWith("NACK::")) {
+            metrics.messageIn(MessageType.COMMAND);
+            String[] parts = input.split("::", 3);
+            try {
+                server.repairMulticast(this, Long.parseLong(parts[1].trim()), Long.parseLong(parts[2].trim()));
+            } catch (RuntimeException e) {
+                sendRaw(Utils.buildSystem("Invalid NACK. Use: NACK::<from>::<to>"));
+            }
+        } else if (input.startsWith("MCAST_OFF::")) {
+            metrics.messageIn(MessageType.COMMAND);
+            long expected;
+            try {
+                expected = Long.parseLong(input.substring(11).trim());
+            } catch (NumberFormatException e) {
+                expected = Long.MAX_VALUE; // nothing to repair
+            }
+            server.leaveMulticast(endpoint(), this, expected);
+        } else if (input.startsWith("HISTORY::")) {
+            metrics.messageIn(MessageType.COMMAND);
+            try {
+                server.sendHistory(this, Integer.parseInt(input.substring(9).trim()), true);
+            } catch (NumberFormatException e) {
+                sendRaw(Utils.buildSystem("Invalid history request. Use: HISTORY::<count>"));
+            }
+        } else if (input.startsWith("EXIT::")) {
+            metrics.messageIn(MessageType.COMMAND);
+            endSession = true;
+            return false;
+        } else {
+            metrics.messageIn(MessageType.COMMAND);
+            sendRaw(Utils.buildSystem("Unknown command or wrong protocol. Type normal text to broadcast, or /w user message for private."));
+        }
+        return true;
+    }
 
+    private void onChat(byte[] content) {
+        String room = currentRoom;
+        if (room != null) {
+            onRoomChat(room, content);
+            return;
+        }
+        metrics.messageIn(MessageType.CHAT);
+        if (!allowMessage()) return;
+        Message m = new Message(username, null, content, MessageType.CHAT, Utils.currentTimeMillis());
+        server.broadcast(m, senderId);
+    }
 
+    private void onRoomChat(String name, byte[] content) {
+        metrics.messageIn(MessageType.CHAT);
+        if (!allowMessage()) return;
+        Room room = rooms.contains(name) ? server.getRoom(name) : null;
+        if (room == null) {
+            sendRaw(Utils.buildSystem("You are not in room '" + name + "'. Use JOIN_ROOM::" + name));
+            return;
+        }
+        Message m = new Message(username, null, name, content, MessageType.CHAT, Utils.currentTimeMillis());
+        server.broadcastToRoom(room, m, senderId);
+    }
 
+    // JOIN_ROOM::lobby switches back to the lobby without leaving any room.
+    private void joinRoom(String name) {
+        if (name.equalsIgnoreCase("lobby")) {
+            currentRoom = null;
+            sendRaw(Utils.buildSystem("Now talking in the lobby."));
+            return;
+        }
+        if (!Utils.isValidRoomName(name)) {
+            sendRaw(Utils.buildSystem("Invalid room name. Use 1-32 letters, digits, '_' or '-'."));
+            return;
+        }
+        if (rooms.add(name)) {
+            Room room = server.joinRoom(endpoint(), name);
+            server.roomNotice(room, username + " joined.");
+            server.log("JOIN_ROOM: " + username + " #" + name);
+        }
+        currentRoom = name;
+        sendRaw(Utils.buildSystem("Now talking in #" + name + "."));
+    }
 
+    private void leaveRoom(String name) {
+        if (name == null || !rooms.remove(name)) {
+            sendRaw(Utils.buildSystem("You are not in " + (name == null ? "a room." : "room '" + name + "'.")));
+            return;
+        }
+        server.leaveRoom(endpoint(), name);
+        Room room = server.getRoom(name);
+        if (room != null) server.roomNotice(room, username + " left.");
+        if (name.equals(currentRoom)) currentRoom = null;
+        sendRaw(Utils.buildSystem("Left #" + name + (currentRoom == null ? "; now talking in the lobby." : ".")));
+        server.log("LEAVE_ROOM: " + username + " #" + name);
+    }
 
+    private void onPrivate(String recipient, byte[] content) {
+        metrics.messageIn(MessageType.PRIVATE);
+        if (!allowMessage()) return;
+        Message m = new Message(username, recipient, content, MessageType.PRIVATE, Utils.currentTimeMillis());
+        server.sendPrivate(m, senderId, recipient);
+        // also inform sender that private sent (optional)
+        sendRaw(Utils.buildSystem("Private message sent to " + recipient));
+    }
 
+    // Called once the transport is ready to write (a PING may be the first thing sent).
+    void startTimeouts() {
+        checkTimeouts(System.nanoTime());
+    }
 
-                
-                if (line.startsWith("JOIN::")) {
-                    String requested = line.substring(6).trim();
-                    if (requested.isEmpty()) {
-                        sendRaw("USERNAME_REJECTED::Empty username");
-                    } else if (server.addClient(requested, this)) {
-                        username = requested;
-                        sendRaw("USERNAME_ACCEPTED");
-                        // Notify others
-                        String ts = Utils.timestamp();
-                        Message sys = new Message("SERVER", null, username + " joined the chat.", MessageType.SYSTEM, ts);
-                        server.broadcast(sys);
-                        server.log("JOIN: " + username + " at " + ts);
-                        break;
-                    } else {
-                        sendRaw("USERNAME_REJECTED::Username already taken");
-                    }
-                } else {
-                    sendRaw("USERNAME_REJECTED::Protocol error; send JOIN::<username>");
-                }
+    // Runs on the timer wheel thread: reap a connection that never joined or went silent, PING
+    // one that has been quiet for half the idle timeout, and re-arm for the next deadline. After
+    // the handshake only clients that joined with the PING capability are watched.
+    private void checkTimeouts(long now) {
+        if (!active) return;
+        ServerConfig config = server.getConfig();
+        long handshakeNanos = config.getHandshakeTimeoutMillis() * 1_000_000L;
+        long idleNanos = config.getIdleTimeoutMillis() * 1_000_000L;
+        long next = Long.MAX_VALUE;
+        if (username == null && handshakeNanos > 0) {
+            if (now - connectedAt >= handshakeNanos) {
+                reap("no JOIN within " + config.getHandshakeTimeoutMillis() + " ms");
+                return;
             }
-
-            // Main loop - expect protocols: MSG::<text>, PMSG::<recipient>::<text>, LIST::, EXIT::
-            String input;
-            while (active && (input = in.readLine()) != null) {
-                if (input.startsWith("MSG::")) {
-                    String content = input.substring(5);
-                    Message m = new Message(username, null, content, MessageType.CHAT, Utils.timestamp());
-                    server.broadcast(m);
-                } else if (input.startsWith("PMSG::")) {
-                    // PMSG::<recipient>::<message>
-                    String payload = input.substring(6);
-                    int sep = payload.indexOf("::");
-                    if (sep >= 0) {
-                        String recipient = payload.substring(0, sep);
-                        String content = payload.substring(sep + 2);
-                        Message m = new Message(username, recipient, content, MessageType.PRIVATE, Utils.timestamp());
-                        server.sendPrivate(m, recipient);
-                        // also inform sender that private sent (optional)
-                        sendRaw(Utils.buildSystem("Private message sent to " + recipient));
-                    } else {
-                        sendRaw(Utils.buildSystem("Invalid private message format. Use: PMSG::recipient::message"));
-                    }
-                } else if (input.startsWith("LIST::")) {
-                    server.sendUserListTo(this);
-                } else if (input.startsWith("EXIT::")) {
-                    break;
-                } else {
-                    sendRaw(Utils.buildSystem("Unknown command or wrong protocol. Type normal text to broadcast, or /w user message for private."));
+            next = connectedAt + handshakeNanos;
+        }
+        if (idleNanos > 0 && (username == null || heartbeat)) {
+            long last = lastInbound;
+            if (now - last >= idleNanos) {
+                reap("idle for " + (now - last) / 1_000_000L + " ms");
+                return;
+            }
+            if (now - last >= idleNanos / 2) {
+                if (pingedFor != last) {
+                    pingedFor = last;
+                    sendControl("PING::");
                 }
+                next = Math.min(next, last + idleNanos);
+            } else {
+                next = Math.min(next, last + idleNanos / 2);
             }
+        }
+        if (next != Long.MAX_VALUE) timeout = server.timers().schedule(this::checkTimeouts, next - now);
+    }
 
-        } catch (IOException e) {
-            // Client disconnected with an exception
-        } finally {
-            cleanup();
+    // Dead peer: close through the normal cleanup path.
+    private void reap(String reason) {
+        metrics.idleReaped.increment();
+        server.log("REAPED: " + (username != null ? username : "(handshake)") + " (" + reason + ") at "
+                + Utils.timestamp());
+        abort();
+    }
+
+    // Per-username limit on messages that fan out (chat, private, room).
+    private boolean allowMessage() {
+        if (userBucket == null || userBucket.tryAcquire()) {
+            userThrottled = false;
+            return true;
         }
+        userThrottled = rateLimited(userThrottled);
+        return false;
     }
 
-    private void cleanup() {
+    // One notice per run of dropped frames, so a flood does not turn into a flood of notices.
+    // told: whether this run was already reported; the run's new state is returned.
+    private boolean rateLimited(boolean told) {
+        metrics.rateLimited.increment();
+        if (!told) {
+            sendControl(Utils.buildSystem("Rate limit exceeded; messages are being dropped. Slow down."));
+        }
+        return true;
+    }
+
+    protected void cleanup() {
+        active = false;
+        metrics.connectionsClosed.increment();
+        server.connectionClosed(username != null);
+        TimerWheel.Timeout t = timeout;
+        if (t != null) t.cancel();
         if (username != null) {
-            server.removeClient(username);
-            String ts = Utils.timestamp();
-            Message sys = new Message("SERVER", null, username + " left the chat.", MessageType.SYSTEM, ts);
-            server.broadcast(sys);
-            server.log("LEFT: " + username + " at " + ts);
+            Session s = session;
+            // keep the user online, without a connection, for a while: a RESUME picks it up
+            long generation = s != null && !endSession ? s.park(this) : -1;
+            if (generation >= 0) {
+                server.sessionParked(s, generation);
+            } else if (s == null || s.end(this)) {
+                if (s != null) server.sessionEnded(s);
+                leaveChat();
+            }
         }
-        try { if (in != null) in.close(); } catch (IOException ignored) {}
-        if (out != null) out.close();
-        try { if (!socket.isClosed()) socket.close(); } catch (IOException ignored) {}
+        closeTransport();
     }
+
+    // The user is gone: out of every room, the roster and the presence notices.
+    void leaveChat() {
+        ClientHandler endpoint = endpoint();
+        for (String name : rooms) {
+            server.leaveRoom(endpoint, name);
+            Room room = server.getRoom(name);
+            if (room != null) server.roomNotice(room, username + " left.");
+        }
+        rooms.clear();
+        server.removeClient(username);
+        server.presence().left(username);
+    }
+
+    // Last step of cleanup: release the connection itself.
+    protected abstract void closeTransport();
 }
@@ -0,0 +1,470 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Federation of several ChatServer nodes. Each node owns the users connected to it; nodes are
+// joined by one TCP link per pair (--peers dials, --cluster-port accepts) over which they
+// replicate a directory of username -> owning node, forward private messages to the owning
+// node, and forward each broadcast once per node, which then fans it out to its own clients.
+//
+// Usernames are claimed optimistically: a node accepts a JOIN if neither its clients nor the
+// directory hold the name, then announces the claim. Two nodes accepting the same name at the
+// same moment both see the other's claim; the earlier claim (ties: smaller node id) wins
+// everywhere and the loser's node disconnects its user. Rooms stay local to a node.
+//
+// Link frames: byte type, then HELLO nodeId instance | CLAIM user millis | RELEASE user |
+// BROADCAST type sender millis content | PRIVATE sender recipient millis content. The instance
+// is random per run, so two nodes that were given the same id can be told apart and reported.
+// A frame that does not parse closes the link.
+public final class Cluster {
+    private static final byte HELLO = 1;
+    private static final byte CLAIM = 2;
+    private static final byte RELEASE = 3;
+    private static final byte BROADCAST = 4;
+    private static final byte PRIVATE = 5;
+    private static final long REDIAL_MILLIS = 1000;
+    private static final MessageType[] TYPES = MessageType.values();
+    private static final int MAX_NODE_ID = 255;
+    // per-link forward queue, bounded like a client's outbound queue: past the high-water mark
+    // lobby broadcasts are dropped, at the limit the link is closed (and redialed)
+    private static final int LINK_HIGH_WATER = 8192;
+    private static final int LINK_LIMIT = 65536;
+
+    private final ChatServer server;
+    private final String nodeId;
+    private final long instance = ThreadLocalRandom.current().nextLong();
+    private final int maxContent;
+    private final Set<String> collisions = ConcurrentHashMap.newKeySet(); // reported once each
+    private final ConcurrentMap<String, Link> links = new ConcurrentHashMap<>();    // by node id
+    private final ConcurrentMap<String, Claim> directory = new ConcurrentHashMap<>(); // remote users
+    private final ConcurrentMap<String, Long> localClaims = new ConcurrentHashMap<>();
+    private final List<Thread> threads = new ArrayList<>();
+    private volatile boolean running = true;
+    private ServerSocket listener;
+
+    private static final class Claim {
+        final String node;
+        final long millis;
+
+        Claim(String node, long millis) {
+            this.node = node;
+            this.millis = millis;
+        }
+
+        boolean beats(Claim other) {
+            return millis != other.millis ? millis < other.millis : node.compareTo(other.node) < 0;
+        }
+    }
+
+    Cluster(ChatServer server, String nodeId) {
+        this.server = server;
+        this.nodeId = nodeId;
+        this.maxContent = server.getConfig().getMaxLineBytes();
+    }
+
+    public String nodeId() { return nodeId; }
+
+    // Accept links on bind:port (port 0 = only dial) and keep a link open to every peer "host:port".
+    void start(String bind, int port, List<String> peers) throws IOException {
+        if (port > 0) {
+            listener = new ServerSocket(port, 50, InetAddress.getByName(bind));
+            daemon("ClusterAccept", () -> {
+                while (running) {
+                    try {
+                        Socket s = listener.accept();
+                        new Link(s, false).start();
+                    } catch (IOException e) {
+                        if (running) System.err.println("Cluster accept error: " + e.getMessage());
+                    }
+                }
+            });
+        }
+        for (String peer : peers) {
+            int colon = peer.lastIndexOf(':');
+            InetSocketAddress address = new InetSocketAddress(peer.substring(0, colon),
+                    Integer.parseInt(peer.substring(colon + 1)));
+            daemon("ClusterDial-" + peer, () -> dialLoop(address));
+        }
+    }
+
+    void shutdown() {
+        running = false;
+        try {
+            if (listener != null) listener.close();
+        } catch (IOException ignored) { }
+        for (Thread t : threads) t.interrupt();
+        for (Link link : links.values()) link.close();
+    }
+
+    // --- directory ---
+
+    public boolean isClaimedElsewhere(String username) {
+        return directory.containsKey(username);
+    }
+
+    public List<String> remoteUsers() {
+        return new ArrayList<>(directory.keySet());
+    }
+
+    // ChatServer.addClient, once the name is free locally: false if another node holds it.
+    // Claims are checked and made under this lock, the same one onClaim resolves conflicts
+    // under, and nothing holding it calls back into the server.
+    synchronized boolean claim(String username) {
+        if (directory.containsKey(username)) return false;
+        long millis = Utils.currentTimeMillis();
+        localClaims.put(username, millis);
+        byte[] frame = encodeClaim(username, millis);
+        for (Link link : links.values()) link.send(frame);
+        return true;
+    }
+
+    synchronized void released(String username) {
+        if (localClaims.remove(username) == null) return;
+        byte[] frame = encode(RELEASE, out -> out.writeUTF(username));
+        for (Link link : links.values()) link.send(frame);
+    }
+
+    // --- forwarding ---
+
+    // A broadcast from one of this node's clients: one frame per node, not per remote user.
+    void forwardBroadcast(Message m) {
+        if (links.isEmpty()) return;
+        byte[] frame = encode(BROADCAST, out -> {
+            out.writeByte(m.getType().ordinal());
+            out.writeUTF(m.getSender());
+            writeBody(out, m);
+        });
+        for (Link link : links.values()) link.send(frame);
+    }
+
+    // False if the recipient is not known to be on another reachable node.
+    boolean forwardPrivate(Message m) {
+        Claim owner = directory.get(m.getRecipient());
+        Link link = owner == null ? null : links.get(owner.node);
+        if (link == null) return false;
+        link.send(encode(PRIVATE, out -> {
+            out.writeUTF(m.getSender());
+            out.writeUTF(m.getRecipient());
+            writeBody(out, m);
+        }));
+        return true;
+    }
+
+    public String report() {
+        StringBuilder sb = new StringBuilder("Node ").append(nodeId).append(", ")
+                .append(localClaims.size()).append(" local user(s)");
+        for (Link link : links.values()) {
+            int users = 0;
+            for (Claim c : directory.values()) if (c.node.equals(link.node)) users++;
+            sb.append("\n  ").append(link.node).append(" (").append(link.socket.getRemoteSocketAddress())
+                    .append(", ").append(link.outbound ? "dialed" : "accepted").append("): ")
+                    .append(users).append(" user(s), ").append(link.queue.size()).append(" frame(s) queued, ")
+                    .append(link.dropped.get()).append(" dropped");
+        }
+        return sb.toString();
+    }
+
+    // --- links ---
+
+    private void dialLoop(InetSocketAddress address) {
+        String peerNode = null; // learned from the first HELLO
+        Link current = null;
+        while (running) {
+            boolean connected = (current != null && !current.closed)
+                    || (peerNode != null && links.containsKey(peerNode));
+            if (!connected) {
+                try {
+                    Socket s = new Socket();
+                    s.connect(address, (int) REDIAL_MILLIS);
+                    current = new Link(s, true);
+                    current.start();
+                } catch (IOException e) {
+                    current = null;
+                }
+            }
+            if (current != null && current.node != null) peerNode = current.node;
+            try {
+                Thread.sleep(REDIAL_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    // Reader thread, after the peer's HELLO. Between two nodes that dialed each other, both
+    // keep the link dialed by the smaller node id; a newer link from the same dialer replaces
+    // a stale one.
+    private void register(Link link) {
+        boolean replaced = false;
+        synchronized (this) {
+            Link existing = links.get(link.node);
+            if (existing != null && !existing.closed && existing.instance != link.instance) {
+                collision(link, existing.socket.getRemoteSocketAddress() + " too");
+                link.close();
+                return;
+            }
+            if (existing != null && !existing.closed) {
+                String dialer = link.outbound ? nodeId : link.node;
+                String existingDialer = existing.outbound ? nodeId : existing.node;
+                if (!dialer.equals(existingDialer) && existingDialer.compareTo(dialer) < 0) {
+                    link.close();
+                    return;
+                }
+                links.remove(link.node, existing);
+                existing.close();
+                replaced = true;
+            }
+            links.put(link.node, link);
+            for (Map.Entry<String, Long> e : localClaims.entrySet()) link.send(encodeClaim(e.getKey(), e.getValue()));
+        }
+        // the peer resends its claims on the new link
+        if (replaced) dropNode(link.node);
+        System.out.println("Cluster: linked to node " + link.node);
+    }
+
+    private void collision(Link link, String also) {
+        if (collisions.add(link.node + "/" + link.instance)) {
+            System.err.println("Cluster: node id " + link.node + " is used by " + link.socket.getRemoteSocketAddress()
+                    + " and " + also + "; give every node its own --node-id");
+        }
+    }
+
+    private void unregister(Link link) {
+        if (link.node != null && links.remove(link.node, link)) {
+            System.out.println("Cluster: lost node " + link.node);
+            dropNode(link.node);
+        }
+    }
+
+    // The node's users are unreachable; forget them.
+    private void dropNode(String node) {
+        for (Map.Entry<String, Claim> e : directory.entrySet()) {
+            if (e.getValue().node.equals(node) && directory.remove(e.getKey(), e.getValue())) {
+                server.remoteRosterChanged('-', e.getKey());
+            }
+        }
+    }
+
+    private void onClaim(Link from, String username, long millis) {
+        Claim claim = new Claim(from.node, millis);
+        boolean[] added = { false };
+        boolean lost;
+        synchronized (this) {
+            Long mine = localClaims.get(username);
+            if (mine != null && !claim.beats(new Claim(nodeId, mine))) return; // the other node drops its user
+            lost = mine != null;
+            if (lost) localClaims.remove(username);
+            directory.compute(username, (k, old) -> {
+                if (old == null) added[0] = true;
+                return old == null || old.node.equals(claim.node) || claim.beats(old) ? claim : old;
+            });
+        }
+        if (lost) server.usernameTakenElsewhere(username);
+        if (added[0]) server.remoteRosterChanged('+', username);
+    }
+
+    private void onRelease(Link from, String username) {
+        Claim c = directory.get(username);
+        if (c != null && c.node.equals(from.node) && directory.remove(username, c)) {
+            server.remoteRosterChanged('-', username);
+        }
+    }
+
+    private void onBroadcast(DataInputStream in) throws IOException {
+        int t = in.readUnsignedByte();
+        if (t >= TYPES.length) throw new IOException("unknown message type " + t);
+        MessageType type = TYPES[t];
+        String sender = in.readUTF();
+        long millis = in.readLong();
+        byte[] content = readContent(in);
+        server.deliverBroadcast(new Message(sender, null, content, type, millis));
+    }
+
+    private void onPrivate(DataInputStream in) throws IOException {
+        String sender = in.readUTF();
+        String recipient = in.readUTF();
+        long millis = in.readLong();
+        byte[] content = readContent(in);
+        server.deliverPrivate(new Message(sender, recipient, content, MessageType.PRIVATE, millis));
+    }
+
+    private interface Body {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    // Encoded once, the same bytes are queued on every link.
+    private static byte[] encode(byte type, Body body) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(type);
+            body.write(out);
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // in-memory stream
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] encodeClaim(String username, long millis) {
+        return encode(CLAIM, out -> {
+            out.writeUTF(username);
+            out.writeLong(millis);
+        });
+    }
+
+    private static void writeBody(DataOutputStream out, Message m) throws IOException {
+        byte[] content = m.getContentUtf8();
+        out.writeLong(m.getTimestampMillis());
+        out.writeInt(content.length);
+        out.write(content);
+    }
+
+    private byte[] readContent(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > maxContent) throw new IOException("bad content length " + length);
+        byte[] content = new byte[length];
+        in.readFully(content);
+        return content;
+    }
+
+    private void daemon(String name, Runnable r) {
+        threads.add(startDaemon(name, r));
+    }
+
+    private static Thread startDaemon(String name, Runnable r) {
+        Thread t = new Thread(r, name);
+        t.setDaemon(true);
+        t.start();
+        return t;
+    }
+
+    // One connection to another node: a reader thread and a writer thread draining a queue,
+    // so a slow peer never holds up the broadcast path.
+    private final class Link {
+        final Socket socket;
+        final boolean outbound;
+        final BlockingQueue<byte[]> queue = new LinkedBlockingQueue<>();
+        final AtomicLong dropped = new AtomicLong();
+        volatile String node;
+        volatile long instance;
+        volatile boolean closed;
+
+        Link(Socket socket, boolean outbound) {
+            this.socket = socket;
+            this.outbound = outbound;
+        }
+
+        void start() {
+            send(encode(HELLO, out -> {
+                out.writeUTF(nodeId);
+                out.writeLong(instance);
+            }));
+            String peer = String.valueOf(socket.getRemoteSocketAddress());
+            startDaemon("ClusterRead-" + peer, this::readLoop);
+            startDaemon("ClusterWrite-" + peer, this::writeLoop);
+        }
+
+        // Claims and releases are always queued (there are at most as many as users, and the
+        // directory depends on them). A stalled peer loses lobby broadcasts first; once the limit
+        // is reached the link is closed, and the peer resends its claims on the next one.
+        void send(byte[] frame) {
+            if (closed) return;
+            byte type = frame[0];
+            if (type == BROADCAST || type == PRIVATE) {
+                int depth = queue.size();
+                if (depth >= LINK_LIMIT) {
+                    System.err.println("Cluster link to " + node + " closed: " + depth + " frame(s) queued");
+                    close();
+                    return;
+                }
+                if (depth >= LINK_HIGH_WATER && type == BROADCAST) {
+                    dropped.incrementAndGet();
+                    return;
+                }
+            }
+            queue.add(frame);
+        }
+
+        void close() {
+            if (closed) return;
+            closed = true;
+            try { socket.close(); } catch (IOException ignored) { }
+            queue.add(new byte[0]); // wake the writer
+        }
+
+        private void readLoop() {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+                if (in.readByte() != HELLO) throw new IOException("expected HELLO");
+                String id = in.readUTF();
+                instance = in.readLong();
+                if (id.isEmpty() || id.length() > MAX_NODE_ID) throw new IOException("bad node id");
+                if (id.equals(nodeId)) {
+                    if (instance != Cluster.this.instance) {
+                        node = id;
+                        collision(this, "this node");
+                        return;
+                    }
+                    throw new IOException("linked to itself");
+                }
+                node = id;
+                register(this);
+                while (!closed) {
+                    byte type = in.readByte();
+                    if (type == CLAIM) {
+                        String user = in.readUTF();
+                        if (!Utils.isValidUsername(user)) throw new IOException("bad username");
+                        onClaim(this, user, in.readLong());
+                    } else if (type == RELEASE) {
+                        onRelease(this, in.readUTF());
+                    } else if (type == BROADCAST) {
+                        onBroadcast(in);
+                    } else if (type == PRIVATE) {
+                        onPrivate(in);
+                    } else {
+                        throw new IOException("unknown frame type " + type);
+                    }
+                }
+            } catch (EOFException e) {
+                // closed by the peer (shutting down, or it kept the other link of a pair)
+            } catch (IOException e) {
+                if (!closed && running) System.err.println("Cluster link to " + node + " failed: " + e.getMessage());
+            } finally {
+                close();
+                unregister(this);
+            }
+        }
+
+        // Frames are written back to back and flushed whenever the queue runs dry.
+        private void writeLoop() {
+            try {
+                OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+                while (!closed) {
+                    byte[] frame = queue.take();
+                    if (frame.length > 0) out.write(frame);
+                    if (queue.isEmpty()) out.flush();
+                }
+            } catch (IOException | InterruptedException e) {
+                close();
+            }
+        }
+    }
+}
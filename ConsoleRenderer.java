@@ -0,0 +1,82 @@
+import java.io.BufferedOutputStream;
+import java.io.PrintStream;
+import java.util.List;
+
+// The console client's ChatClientListener. Lines are formatted into a buffer that reaches the
+// terminal on flush(), which the client calls once per batch it read, so a busy room costs one
+// write per batch instead of one per message.
+final class ConsoleRenderer implements ChatClientListener {
+    private final PrintStream out = new PrintStream(new BufferedOutputStream(System.out, 1 << 16), false);
+
+    @Override
+    public synchronized void onMessage(String timestamp, String sender, String text) {
+        out.println("[" + timestamp + "] " + sender + ": " + text);
+    }
+
+    @Override
+    public synchronized void onPrivate(String timestamp, String sender, String text) {
+        out.println("[" + timestamp + "] (private) " + sender + ": " + text);
+    }
+
+    @Override
+    public synchronized void onRoomMessage(String room, String timestamp, String sender, String text) {
+        out.println("[" + timestamp + "] #" + room + " " + sender + ": " + text);
+    }
+
+    @Override
+    public synchronized void onSystem(String text) {
+        out.println("[SYSTEM] " + text);
+    }
+
+    @Override
+    public synchronized void onUserList(List<String> users) {
+        out.println("Active users: " + (users.isEmpty() ? "(none)" : String.join(", ", users)));
+    }
+
+    @Override
+    public synchronized void onRoomList(List<String> rooms) {
+        out.println("Rooms: " + (rooms.isEmpty() ? "(none)" : String.join(", ", rooms)));
+    }
+
+    @Override
+    public synchronized void onSearchHit(String timestamp, String sender, String where, String text) {
+        String to = where.equals("*") ? "" : where.startsWith("@") ? " -> " + where.substring(1) : " " + where;
+        out.println("  [" + timestamp + "] " + sender + to + ": " + text);
+    }
+
+    @Override
+    public synchronized void onOther(String line) {
+        out.println(line);
+    }
+
+    @Override
+    public synchronized void onConnectionLost() {
+        say("[Connection lost; reconnecting...]");
+    }
+
+    @Override
+    public synchronized void onReconnected(boolean resumed) {
+        say(resumed ? "[Reconnected]" : "[Reconnected as a new session; messages sent meanwhile were missed]");
+    }
+
+    @Override
+    public synchronized void onClosed() {
+        say("Disconnected.");
+    }
+
+    @Override
+    public synchronized void flush() {
+        out.flush();
+    }
+
+    // Local output (prompts, help, usage): shown at once.
+    synchronized void say(String line) {
+        out.println(line);
+        out.flush();
+    }
+
+    synchronized void prompt(String text) {
+        out.print(text);
+        out.flush();
+    }
+}
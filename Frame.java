@@ -0,0 +1,184 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+// One server -> client frame, encoded at most once per wire format no matter how many clients
+// receive it. A broadcast builds a single Frame and hands the same bytes to every recipient;
+// nothing may modify the arrays after they are built.
+//
+// Text form: the protocol line plus '\n'. Binary form (BinaryProtocol): a message frame for
+// messages, otherwise the text line wrapped in a TEXT frame. Both are built lazily, so a room of
+// only text (or only binary) clients never pays for the other encoding.
+public final class Frame {
+    private static final Frame[] NO_PARTS = new Frame[0];
+
+    private final String line;          // text-protocol line without '\n' (null for messages/batches)
+    private final Message message;      // message frames only
+    private final int senderId;         // interned sender id for binary clients, -1 if none
+    private final Frame[] parts;        // batches only
+    private final boolean droppable;
+    private final boolean binarySwitch;
+    private volatile byte[] text;
+    private volatile byte[] binary;
+    private volatile ByteBuffer textView;
+    private volatile ByteBuffer binaryView;
+
+    private Frame(String line, Message message, int senderId, Frame[] parts, boolean droppable,
+                  boolean binarySwitch) {
+        this.line = line;
+        this.message = message;
+        this.senderId = senderId;
+        this.parts = parts;
+        this.droppable = droppable;
+        this.binarySwitch = binarySwitch;
+    }
+
+    public static Frame of(String line) {
+        return of(line, false);
+    }
+
+    // droppable: low-priority frames (join/leave notices) that a slow client may skip
+    public static Frame of(String line, boolean droppable) {
+        Frame f = new Frame(line, null, -1, NO_PARTS, droppable, false);
+        f.text = encodeLine(line);   // nearly every plain line goes to at least one text client
+        return f;
+    }
+
+    // A chat/private/system message. Text clients get MESSAGE:: or PRIVATE:: lines, binary
+    // clients the compact message frame.
+    public static Frame message(Message m, int senderId, boolean droppable) {
+        return new Frame(null, m, senderId, NO_PARTS, droppable, false);
+    }
+
+    // Last text frame of a handshake that negotiated binary: the writer switches format after it.
+    public static Frame switchToBinary(String line) {
+        Frame f = new Frame(line, null, -1, NO_PARTS, false, true);
+        f.text = encodeLine(line);
+        return f;
+    }
+
+    // Several frames as one, so a batch (e.g. history replay) goes out in a single write.
+    public static Frame concat(List<Frame> frames) {
+        return new Frame(null, null, -1, frames.toArray(NO_PARTS), false, false);
+    }
+
+    public boolean isDroppable() { return droppable; }
+
+    public boolean isBinarySwitch() { return binarySwitch; }
+
+    public boolean isBatch() { return parts.length > 0; }
+
+    // Frames of a batch (binary writers announce senders part by part).
+    public Frame[] parts() { return parts; }
+
+    public int getSenderId() { return senderId; }
+
+    public String getSenderName() { return message != null ? message.getSender() : null; }
+
+    // Shared encoded bytes - callers must treat them as read-only.
+    byte[] bytes(boolean binaryFormat) {
+        return binaryFormat ? binaryBytes() : textBytes();
+    }
+
+    // Independent read-only view (own position/limit) over the shared bytes; no copy.
+    public ByteBuffer buffer(boolean binaryFormat) {
+        ByteBuffer view = binaryFormat ? binaryView : textView;
+        if (view == null) {
+            view = ByteBuffer.wrap(bytes(binaryFormat)).asReadOnlyBuffer();
+            if (binaryFormat) binaryView = view; else textView = view;
+        }
+        return view.duplicate();
+    }
+
+    public int length() { return textBytes().length; }
+
+    // Benign races below: two threads may both encode, and both results are identical.
+
+    private byte[] textBytes() {
+        byte[] b = text;
+        if (b == null) {
+            if (message != null) {
+                b = encodeMessageLine(message);
+            } else {
+                int total = 0;
+                for (Frame f : parts) total += f.textBytes().length;
+                b = new byte[total];
+                int pos = 0;
+                for (Frame f : parts) {
+                    byte[] p = f.textBytes();
+                    System.arraycopy(p, 0, b, pos, p.length);
+                    pos += p.length;
+                }
+            }
+            text = b;
+        }
+        return b;
+    }
+
+    private byte[] binaryBytes() {
+        byte[] b = binary;
+        if (b == null) {
+            if (message != null && message.getRoom() != null) {
+                b = BinaryProtocol.encodeRoomMessage(senderId, message.getTimestampMillis(), message.getRoom(),
+                        message.getContentUtf8());
+            } else if (message != null) {
+                b = BinaryProtocol.encodeMessage(message.getType(), senderId, message.getTimestampMillis(),
+                        message.getContentUtf8());
+            } else if (line != null) {
+                b = BinaryProtocol.encodeString(BinaryProtocol.OP_TEXT, line);
+            } else {
+                throw new IllegalStateException("batches are written part by part in binary mode");
+            }
+            binary = b;
+        }
+        return b;
+    }
+
+    private static final byte[] MESSAGE_PREFIX = "MESSAGE::".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] PRIVATE_PREFIX = "PRIVATE::".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] ROOM_PREFIX = "ROOM::".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] SEP = "::".getBytes(StandardCharsets.US_ASCII);
+
+    // Same bytes as Utils.buildBroadcastMessage/buildPrivateMessage/buildRoomMessage + '\n',
+    // assembled straight from the content's UTF-8 so the content never has to be decoded.
+    private static byte[] encodeMessageLine(Message m) {
+        byte[] prefix = m.getType() == MessageType.PRIVATE ? PRIVATE_PREFIX : MESSAGE_PREFIX;
+        if (m.getRoom() != null) {
+            byte[] room = m.getRoom().getBytes(StandardCharsets.UTF_8);
+            prefix = Arrays.copyOf(ROOM_PREFIX, ROOM_PREFIX.length + room.length + SEP.length);
+            put(prefix, put(prefix, ROOM_PREFIX.length, room), SEP);
+        }
+        byte[] ts = Utils.timestampBytes(m.getTimestampMillis());
+        byte[] sender = String.valueOf(m.getSender()).getBytes(StandardCharsets.UTF_8);
+        byte[] content = m.getContentUtf8();
+        byte[] b = new byte[prefix.length + ts.length + sender.length + content.length + 2 * SEP.length + 1];
+        int pos = put(b, 0, prefix);
+        pos = put(b, pos, ts);
+        pos = put(b, pos, SEP);
+        pos = put(b, pos, sender);
+        pos = put(b, pos, SEP);
+        pos = put(b, pos, content);
+        b[pos] = '\n';
+        return b;
+    }
+
+    private static int put(byte[] dst, int pos, byte[] src) {
+        System.arraycopy(src, 0, dst, pos, src.length);
+        return pos + src.length;
+    }
+
+    private static byte[] encodeLine(String line) {
+        byte[] body = line.getBytes(StandardCharsets.UTF_8);
+        byte[] bytes = new byte[body.length + 1];
+        System.arraycopy(body, 0, bytes, 0, body.length);
+        bytes[body.length] = '\n';
+        return bytes;
+    }
+
+    @Override
+    public String toString() {
+        byte[] b = textBytes();
+        return new String(b, 0, b.length - 1, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,213 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// Incremental decoder for inbound bytes, shared by the blocking and NIO transports and by the
+// client. Splits either text lines or BinaryProtocol frames (after switchToBinary()) out of one
+// reusable buffer. After next() returns true the frame is buf[frameStart, frameStart+frameLength):
+// a line without its line terminator, or opcode + body for binary frames.
+public final class FrameDecoder {
+    private final int maxFrame;
+    private byte[] buf;
+    private ByteBuffer view;     // wraps buf for channel reads
+    private int readPos;         // start of unconsumed data
+    private int writePos;        // end of data
+    private int scanPos;         // text mode: where the newline search resumes
+    private boolean binary;
+
+    private int frameStart;
+    private int frameLength;
+    private int cursor;          // read position inside the current frame
+
+    public FrameDecoder(int initialSize, int maxFrame) {
+        this.maxFrame = maxFrame;
+        this.buf = new byte[initialSize];
+        this.view = ByteBuffer.wrap(buf);
+    }
+
+    public void switchToBinary() {
+        binary = true;
+    }
+
+    public boolean isBinary() { return binary; }
+
+    // Blocking read of whatever is available; returns -1 on EOF.
+    public int readFrom(InputStream in) throws IOException {
+        makeRoom();
+        int n = in.read(buf, writePos, buf.length - writePos);
+        if (n > 0) writePos += n;
+        return n;
+    }
+
+    // Non-blocking read; returns -1 on EOF, 0 if nothing was available.
+    public int readFrom(ReadableByteChannel ch) throws IOException {
+        makeRoom();
+        view.limit(buf.length).position(writePos);
+        int n = ch.read(view);
+        if (n > 0) writePos += n;
+        return n;
+    }
+
+    // Decode the next complete frame, if any. Throws if a frame exceeds maxFrame.
+    public boolean next() throws IOException {
+        return binary ? nextBinary() : nextLine();
+    }
+
+    public byte[] array() { return buf; }
+
+    public int frameStart() { return frameStart; }
+
+    public int frameLength() { return frameLength; }
+
+    // --- current frame accessors ---
+
+    public String frameAsString() {
+        return new String(buf, frameStart, frameLength, StandardCharsets.UTF_8);
+    }
+
+    // binary: opcode of the current frame; positions the cursor on the body
+    public int opcode() {
+        cursor = frameStart + 1;
+        return buf[frameStart] & 0xFF;
+    }
+
+    public long readVarint() throws IOException {
+        long v = 0;
+        int shift = 0;
+        int end = frameStart + frameLength;
+        while (cursor < end && shift < 64) {
+            byte b = buf[cursor++];
+            v |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return v;
+            shift += 7;
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    public String readString(int length) throws IOException {
+        if (length < 0 || cursor + length > frameStart + frameLength) throw new IOException("Malformed frame");
+        String s = new String(buf, cursor, length, StandardCharsets.UTF_8);
+        cursor += length;
+        return s;
+    }
+
+    // If the rest of the frame starts with prefix, skip past it and return true. Lets callers
+    // dispatch on a command prefix without decoding the frame into a String.
+    public boolean consume(byte[] prefix) {
+        int end = frameStart + frameLength;
+        if (end - cursor < prefix.length) return false;
+        for (int i = 0; i < prefix.length; i++) {
+            if (buf[cursor + i] != prefix[i]) return false;
+        }
+        cursor += prefix.length;
+        return true;
+    }
+
+    // Decode up to the next occurrence of sep and skip past it; null (cursor unchanged) if absent.
+    public String readUntil(byte[] sep) {
+        int end = frameStart + frameLength - sep.length;
+        outer:
+        for (int i = cursor; i <= end; i++) {
+            for (int j = 0; j < sep.length; j++) {
+                if (buf[i + j] != sep[j]) continue outer;
+            }
+            String s = new String(buf, cursor, i - cursor, StandardCharsets.UTF_8);
+            cursor = i + sep.length;
+            return s;
+        }
+        return null;
+    }
+
+    // Copy of the rest of the frame; the only allocation on the chat path.
+    public byte[] readRemainingBytes() {
+        byte[] b = Arrays.copyOfRange(buf, cursor, frameStart + frameLength);
+        cursor = frameStart + frameLength;
+        return b;
+    }
+
+    public String readRemaining() {
+        String s = new String(buf, cursor, frameStart + frameLength - cursor, StandardCharsets.UTF_8);
+        cursor = frameStart + frameLength;
+        return s;
+    }
+
+    // --- internals ---
+
+    private boolean nextLine() throws IOException {
+        for (int i = Math.max(scanPos, readPos); i < writePos; i++) {
+            if (buf[i] == '\n') {
+                int end = (i > readPos && buf[i - 1] == '\r') ? i - 1 : i;
+                frameStart = readPos;
+                frameLength = end - readPos;
+                cursor = frameStart;
+                readPos = i + 1;
+                scanPos = readPos;
+                return true;
+            }
+        }
+        scanPos = writePos;
+        if (writePos - readPos > maxFrame) throw new IOException("Line too long");
+        return false;
+    }
+
+    private boolean nextBinary() throws IOException {
+        long len = 0;
+        int shift = 0;
+        int p = readPos;
+        while (true) {
+            if (p >= writePos) return false;
+            byte b = buf[p++];
+            len |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) break;
+            shift += 7;
+            if (shift > 28) throw new IOException("Malformed frame length");
+        }
+        if (len < 1 || len > maxFrame) throw new IOException("Frame too long: " + len);
+        if (p + len > writePos) {
+            ensureCapacity((int) (p - readPos + len));
+            return false;
+        }
+        frameStart = p;
+        frameLength = (int) len;
+        cursor = p;
+        readPos = p + (int) len;
+        scanPos = readPos;
+        return true;
+    }
+
+    // Compact consumed bytes away and grow when the buffer is full.
+    private void makeRoom() {
+        if (readPos > 0 && (readPos == writePos || writePos == buf.length)) compact();
+        if (writePos == buf.length) ensureCapacity(buf.length * 2);
+    }
+
+    // Make sure buf can hold `needed` bytes starting at readPos.
+    private void ensureCapacity(int needed) {
+        if (readPos + needed <= buf.length) return;
+        if (needed <= buf.length) {
+            compact();
+            return;
+        }
+        int size = buf.length;
+        while (size < needed) size *= 2;
+        byte[] bigger = new byte[Math.max(needed, Math.min(size, maxFrame + 16))];
+        int n = writePos - readPos;
+        System.arraycopy(buf, readPos, bigger, 0, n);
+        scanPos -= readPos;
+        readPos = 0;
+        writePos = n;
+        buf = bigger;
+        view = ByteBuffer.wrap(buf);
+    }
+
+    private void compact() {
+        int n = writePos - readPos;
+        System.arraycopy(buf, readPos, buf, 0, n);
+        scanPos = Math.max(0, scanPos - readPos);
+        readPos = 0;
+        writePos = n;
+    }
+}
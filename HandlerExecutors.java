@@ -0,0 +1,82 @@
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Factories for the ExecutorService that runs blocking ClientHandlers.
+//   platform  - one platform thread per connection (the original behaviour)
+//   virtual   - one virtual thread per connection (JDK 21+, falls back to platform)
+//   fixed:N   - bounded pool of N platform threads; each connection holds one for its whole
+//               life, so N must cover --max-connections (ServerConfig.validate checks)
+public final class HandlerExecutors {
+    private static final String CARRIER_THREAD_CLASS = "jdk.internal.misc.CarrierThread";
+
+    private HandlerExecutors() {}
+
+    public static ExecutorService create(String mode) {
+        if (mode == null || mode.equalsIgnoreCase("platform")) {
+            return Executors.newCachedThreadPool(named("ClientHandler-"));
+        }
+        if (mode.equalsIgnoreCase("virtual")) {
+            ExecutorService virtual = newVirtualThreadPerTaskExecutor();
+            if (virtual != null) return virtual;
+            System.err.println("Virtual threads need JDK 21+; using platform threads instead.");
+            return Executors.newCachedThreadPool(named("ClientHandler-"));
+        }
+        int n = fixedThreads(mode);
+        if (n > 0) return Executors.newFixedThreadPool(n, named("ClientHandler-"));
+        throw new IllegalArgumentException("Unknown executor mode: " + mode);
+    }
+
+    // Pool size of a fixed:N mode, 0 for the other known modes. IllegalArgumentException for
+    // an unknown mode or a bad N.
+    public static int fixedThreads(String mode) {
+        if (mode == null || mode.equalsIgnoreCase("platform") || mode.equalsIgnoreCase("virtual")) return 0;
+        if (!mode.toLowerCase().startsWith("fixed:")) {
+            throw new IllegalArgumentException("--executor must be platform, virtual or fixed:N, not '" + mode + "'");
+        }
+        try {
+            int n = Integer.parseInt(mode.substring(6).trim());
+            if (n > 0) return n;
+        } catch (NumberFormatException ignored) { }
+        throw new IllegalArgumentException("--executor=fixed:N needs a thread count above 0, not '" + mode.substring(6) + "'");
+    }
+
+    public static boolean isVirtual(ExecutorService executor) {
+        return executor.getClass().getName().equals("java.util.concurrent.ThreadPerTaskExecutor");
+    }
+
+    // Number of live platform threads currently carrying virtual threads.
+    public static int carrierThreadCount() {
+        int n = 0;
+        for (Thread t : Thread.getAllStackTraces().keySet()) {
+            if (t.getClass().getName().equals(CARRIER_THREAD_CLASS)) n++;
+        }
+        return n;
+    }
+
+    // Upper bound on carriers for the default virtual-thread scheduler.
+    public static int carrierParallelism() {
+        String p = System.getProperty("jdk.virtualThreadScheduler.parallelism");
+        if (p != null) {
+            try { return Integer.parseInt(p); } catch (NumberFormatException ignored) {}
+        }
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    // Compiled against JDK 17, so look the JDK 21 factory up reflectively.
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) m.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    private static ThreadFactory named(String prefix) {
+        AtomicInteger seq = new AtomicInteger();
+        return r -> new Thread(r, prefix + seq.incrementAndGet());
+    }
+}
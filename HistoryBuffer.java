@@ -0,0 +1,64 @@
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// Fixed-capacity ring of the most recent broadcast frames, kept pre-encoded so a replay is just
+// a copy of bytes. Writers claim a slot with one atomic increment; readers never lock and skip
+// slots that were overwritten while they were reading. Each entry learns where the chat log
+// stored its message, so a read from disk can continue exactly where the ring ends.
+public class HistoryBuffer {
+    private final int capacity;
+    private final AtomicReferenceArray<Entry> slots;
+    private final AtomicLong next = new AtomicLong();
+
+    public HistoryBuffer(int capacity) {
+        this.capacity = capacity;
+        this.slots = new AtomicReferenceArray<>(Math.max(1, capacity));
+    }
+
+    public int capacity() { return capacity; }
+
+    public void add(Entry e) {
+        if (capacity == 0) return;
+        e.seq = next.getAndIncrement();
+        slots.set((int) (e.seq % capacity), e);
+    }
+
+    // Number of entries currently held.
+    public int size() {
+        return (int) Math.min(next.get(), capacity);
+    }
+
+    // Appends up to n of the newest frames to out, oldest first. Returns the entry of the oldest
+    // one copied (null if none): anything earlier has to come from disk.
+    public Entry latest(int n, List<Frame> out) {
+        Entry oldest = null;
+        if (capacity == 0 || n <= 0) return oldest;
+        long end = next.get();
+        long start = Math.max(0, end - Math.min(n, capacity));
+        for (long seq = start; seq < end; seq++) {
+            Entry e = slots.get((int) (seq % capacity));
+            // null or a different seq: not yet published, or already overwritten by a newer one
+            if (e != null && e.seq == seq) {
+                if (oldest == null) oldest = e;
+                out.add(e.frame);
+            }
+        }
+        return oldest;
+    }
+
+    public static final class Entry {
+        private long seq;   // set by add, before the entry is published
+        private final Frame frame;
+        private volatile long offset = -1;
+
+        public Entry(Frame frame) {
+            this.frame = frame;
+        }
+
+        // Segment log offset of the message, -1 until the chat log has written it.
+        public long offset() { return offset; }
+
+        public void stored(long offset) { this.offset = offset; }
+    }
+}
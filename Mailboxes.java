@@ -0,0 +1,477 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// Store-and-forward mailboxes for private messages to users who are offline. One append-only
+// file holds mail records and "delivered" records naming mail that has been handed out; an
+// in-memory index maps each username to the offsets of its pending mail, so a deposit is one
+// append plus one map update and finding a user's mail is one lookup. Delivery reads the
+// records back with positional reads, which run alongside other users' deposits and
+// deliveries. Once most of the file is delivered or expired mail it is rewritten with only the
+// pending records, on a background thread (see compact). Each user holds at most maxPerUser
+// messages, all users together at most maxBytes, and mail older than ttlMillis is dropped
+// instead of delivered.
+//
+// Mail is only kept for names that have joined this server before (a 'U' record each), so a
+// typo is still "not found". Names are not authenticated: whoever next joins with the
+// recipient's name gets the mail.
+//
+// Record: int length, then 'M' seq millis recipient sender content | 'D' recipient count seq...
+//         | 'U' username
+public final class Mailboxes {
+    private static final byte MAIL = 'M';
+    private static final byte DELIVERED = 'D';
+    private static final byte USER = 'U';
+    private static final long MIN_COMPACT_BYTES = 1 << 20;
+
+    private final Path file;
+    private final int maxPerUser;
+    private final long maxBytes;
+    private final long ttlMillis;
+    // a user's deque is only touched inside boxes.compute / remove with the read lock held, or
+    // under the write lock (compaction walks every deque)
+    private final ConcurrentMap<String, ArrayDeque<Mail>> boxes = new ConcurrentHashMap<>();
+    // every name that has joined: the only ones mail is kept for
+    private final Set<String> known = ConcurrentHashMap.newKeySet();
+    // deposits and deliveries hold the read lock (they run concurrently); compaction the write
+    // lock, briefly
+    private final ReentrantReadWriteLock fileLock = new ReentrantReadWriteLock();
+    private final Object appendLock = new Object();
+    private final AtomicLong liveBytes = new AtomicLong();
+    private final AtomicLong deadBytes = new AtomicLong();
+    private final AtomicLong userBytes = new AtomicLong(); // 'U' records: neither live nor dead
+    private final AtomicBoolean compacting = new AtomicBoolean();
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "MailboxCompaction");
+        t.setDaemon(true);
+        return t;
+    });
+    private FileChannel channel;   // replaced by compaction
+    private long end;              // guarded by appendLock
+    private long nextSeq;          // guarded by appendLock
+
+    private static final class Mail {
+        final long seq;
+        final long millis;
+        final int length;
+        long offset; // moved by compaction
+
+        Mail(long seq, long millis, int length, long offset) {
+            this.seq = seq;
+            this.millis = millis;
+            this.length = length;
+            this.offset = offset;
+        }
+    }
+
+    public Mailboxes(Path file, int maxPerUser, long maxBytes, long ttlMillis) throws IOException {
+        this.file = file;
+        this.maxPerUser = Math.max(1, maxPerUser);
+        this.maxBytes = maxBytes;
+        this.ttlMillis = ttlMillis;
+        Path dir = file.toAbsolutePath().getParent();
+        if (dir != null) Files.createDirectories(dir);
+        load();
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        channel.truncate(end); // a record torn by a crash
+        maybeCompact();
+    }
+
+    public int pending(String username) {
+        int[] size = { 0 };
+        fileLock.readLock().lock();
+        try {
+            boxes.computeIfPresent(username, (k, box) -> {
+                size[0] = box.size();
+                return box;
+            });
+        } finally {
+            fileLock.readLock().unlock();
+        }
+        return size[0];
+    }
+
+    public boolean knows(String username) {
+        return known.contains(username);
+    }
+
+    // A user joined: from now on mail for them is kept while they are offline.
+    public void seen(String username) throws IOException {
+        if (known.contains(username)) return;
+        fileLock.readLock().lock();
+        try {
+            if (known.add(username)) userBytes.addAndGet(append(userRecord(username), 0).length);
+        } finally {
+            fileLock.readLock().unlock();
+        }
+    }
+
+    // Keep a private message for its offline recipient. False if their mailbox (or the store)
+    // is full.
+    public boolean deposit(Message m) throws IOException {
+        String user = m.getRecipient();
+        long now = Utils.currentTimeMillis();
+        byte[] record = mailRecord(m);
+        fileLock.readLock().lock();
+        try {
+            boolean[] full = { liveBytes.get() >= maxBytes };
+            boxes.computeIfPresent(user, (k, box) -> {
+                expire(box, now);
+                full[0] |= box.size() >= maxPerUser;
+                return box;
+            });
+            if (full[0]) return false;
+
+            Mail mail = append(record, m.getTimestampMillis());
+            boolean[] added = { false };
+            boxes.compute(user, (k, box) -> {
+                if (box == null) box = new ArrayDeque<>();
+                if (box.size() < maxPerUser) {
+                    box.add(mail);
+                    added[0] = true;
+                }
+                return box;
+            });
+            (added[0] ? liveBytes : deadBytes).addAndGet(mail.length);
+            return added[0];
+        } finally {
+            fileLock.readLock().unlock();
+        }
+    }
+
+    // Remove and return everything waiting for the user, oldest first, expired mail left out.
+    public List<Message> take(String username) throws IOException {
+        List<Message> out = new ArrayList<>();
+        fileLock.readLock().lock();
+        try {
+            ArrayDeque<Mail> box = boxes.remove(username);
+            if (box == null) return out;
+            long cutoff = cutoff(Utils.currentTimeMillis());
+            long[] seqs = new long[box.size()];
+            int n = 0;
+            long mailBytes = 0;
+            Mail delivered;
+            try {
+                for (Mail mail : box) {
+                    seqs[n++] = mail.seq;
+                    mailBytes += mail.length;
+                    if (mail.millis >= cutoff) out.add(readMail(mail));
+                }
+                delivered = append(deliveredRecord(username, seqs), 0);
+            } catch (IOException e) {
+                // put it back for the next attempt
+                boxes.merge(username, box, (newer, old) -> {
+                    old.addAll(newer);
+                    return old;
+                });
+                throw e;
+            }
+            liveBytes.addAndGet(-mailBytes);
+            deadBytes.addAndGet(mailBytes + delivered.length);
+        } finally {
+            fileLock.readLock().unlock();
+        }
+        maybeCompact();
+        return out;
+    }
+
+    public void close() {
+        compactor.shutdown();
+        try {
+            compactor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        fileLock.writeLock().lock();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.err.println("Mailbox close error: " + e.getMessage());
+        } finally {
+            fileLock.writeLock().unlock();
+        }
+    }
+
+    private long cutoff(long now) {
+        return ttlMillis > 0 ? now - ttlMillis : Long.MIN_VALUE;
+    }
+
+    // Drop expired mail from the front of a box (mail arrives roughly in time order).
+    private void expire(ArrayDeque<Mail> box, long now) {
+        long cutoff = cutoff(now);
+        while (!box.isEmpty() && box.peekFirst().millis < cutoff) {
+            Mail mail = box.pollFirst();
+            liveBytes.addAndGet(-mail.length);
+            deadBytes.addAndGet(mail.length);
+        }
+    }
+
+    // Caller holds the read lock.
+    private Mail append(byte[] record, long millis) throws IOException {
+        synchronized (appendLock) {
+            ByteBuffer buf = ByteBuffer.wrap(record);
+            long seq = -1;
+            if (record[4] == MAIL) {
+                seq = nextSeq++;
+                buf.putLong(5, seq); // mailRecord left a placeholder
+            }
+            long pos = end;
+            while (buf.hasRemaining()) pos += channel.write(buf, pos);
+            Mail mail = new Mail(seq, millis, record.length, end);
+            end = pos;
+            return mail;
+        }
+    }
+
+    private ByteBuffer readRecord(Mail mail) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(mail.length);
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, mail.offset + buf.position()) < 0) throw new EOFException("mailbox record cut short");
+        }
+        return buf.flip();
+    }
+
+    private Message readMail(Mail mail) throws IOException {
+        ByteBuffer buf = readRecord(mail);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(buf.array(), 5, mail.length - 5));
+        in.readLong(); // seq
+        long millis = in.readLong();
+        String recipient = in.readUTF();
+        String sender = in.readUTF();
+        byte[] content = new byte[in.readInt()];
+        in.readFully(content);
+        return new Message(sender, recipient, content, MessageType.PRIVATE, millis);
+    }
+
+    private static byte[] mailRecord(Message m) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        byte[] content = m.getContentUtf8();
+        out.writeInt(0);
+        out.writeByte(MAIL);
+        out.writeLong(0); // seq, filled in by append
+        out.writeLong(m.getTimestampMillis());
+        out.writeUTF(m.getRecipient());
+        out.writeUTF(m.getSender());
+        out.writeInt(content.length);
+        out.write(content);
+        return withLength(bytes.toByteArray());
+    }
+
+    private static byte[] deliveredRecord(String username, long[] seqs) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0);
+        out.writeByte(DELIVERED);
+        out.writeUTF(username);
+        out.writeInt(seqs.length);
+        for (long seq : seqs) out.writeLong(seq);
+        return withLength(bytes.toByteArray());
+    }
+
+    private static byte[] userRecord(String username) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0);
+        out.writeByte(USER);
+        out.writeUTF(username);
+        return withLength(bytes.toByteArray());
+    }
+
+    private static byte[] withLength(byte[] record) {
+        ByteBuffer.wrap(record).putInt(0, record.length - 4);
+        return record;
+    }
+
+    // Rebuild the index from the file; stops at the first incomplete record.
+    private void load() throws IOException {
+        Map<String, LinkedHashMap<Long, Mail>> pending = new HashMap<>();
+        long offset = 0;
+        long userBytes = 0;
+        if (Files.exists(file)) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+                while (true) {
+                    int length;
+                    byte[] payload;
+                    try {
+                        length = in.readInt();
+                        if (length <= 0) break;
+                        payload = new byte[length];
+                        in.readFully(payload);
+                    } catch (EOFException e) {
+                        break;
+                    }
+                    DataInputStream rec = new DataInputStream(new ByteArrayInputStream(payload));
+                    byte kind = rec.readByte();
+                    if (kind == MAIL) {
+                        long seq = rec.readLong();
+                        long millis = rec.readLong();
+                        String recipient = rec.readUTF();
+                        pending.computeIfAbsent(recipient, k -> new LinkedHashMap<>())
+                                .put(seq, new Mail(seq, millis, length + 4, offset));
+                        nextSeq = Math.max(nextSeq, seq + 1);
+                    } else if (kind == USER) {
+                        known.add(rec.readUTF());
+                        userBytes += length + 4;
+                    } else if (kind == DELIVERED) {
+                        LinkedHashMap<Long, Mail> box = pending.get(rec.readUTF());
+                        for (int n = rec.readInt(); n > 0; n--) {
+                            long seq = rec.readLong();
+                            if (box != null) box.remove(seq);
+                        }
+                    } else {
+                        break;
+                    }
+                    offset += length + 4;
+                }
+            }
+        }
+        end = offset;
+        long cutoff = cutoff(Utils.currentTimeMillis());
+        long live = 0;
+        for (Map.Entry<String, LinkedHashMap<Long, Mail>> e : pending.entrySet()) {
+            ArrayDeque<Mail> box = new ArrayDeque<>();
+            for (Mail mail : e.getValue().values()) {
+                if (mail.millis < cutoff || box.size() >= maxPerUser) continue;
+                box.add(mail);
+                live += mail.length;
+            }
+            if (!box.isEmpty()) boxes.put(e.getKey(), box);
+        }
+        liveBytes.set(live);
+        this.userBytes.set(userBytes);
+        deadBytes.set(offset - live - userBytes);
+    }
+
+    // Compaction runs on its own thread, so the caller (a handler delivering mail) does not wait.
+    private void maybeCompact() {
+        if (deadBytes.get() < Math.max(MIN_COMPACT_BYTES, liveBytes.get())) return;
+        if (!compacting.compareAndSet(false, true)) return;
+        try {
+            compactor.execute(() -> {
+                try {
+                    if (deadBytes.get() >= Math.max(MIN_COMPACT_BYTES, liveBytes.get())) compact();
+                } catch (IOException | RuntimeException e) {
+                    System.err.println("Mailbox compaction failed: " + e);
+                } finally {
+                    compacting.set(false);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            compacting.set(false); // closing
+        }
+    }
+
+    // Copy pending mail to a new file and swap it in. The write lock is only held to pick what
+    // to copy and, at the end, to append what was written meanwhile and swap the files; the
+    // bulk of the copy runs while deposits and deliveries go on appending to the old file.
+    private void compact() throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        List<String> users;
+        List<Mail> mails = new ArrayList<>();
+        long from;
+        long userBytesBefore;
+        fileLock.writeLock().lock();
+        try {
+            long now = Utils.currentTimeMillis();
+            users = new ArrayList<>(known);
+            for (ArrayDeque<Mail> box : boxes.values()) {
+                expire(box, now);
+                mails.addAll(box);
+            }
+            boxes.values().removeIf(ArrayDeque::isEmpty);
+            synchronized (appendLock) {
+                from = end;
+            }
+            userBytesBefore = userBytes.get();
+        } finally {
+            fileLock.writeLock().unlock();
+        }
+
+        Map<Mail, Long> offsets = new HashMap<>();
+        long pos = 0;
+        FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            for (String user : users) {
+                ByteBuffer buf = ByteBuffer.wrap(userRecord(user));
+                while (buf.hasRemaining()) pos += out.write(buf, pos);
+            }
+            long usersEnd = pos;
+            // only compaction moves a record or replaces the channel, so these reads are safe
+            for (Mail mail : mails) {
+                ByteBuffer buf = readRecord(mail);
+                offsets.put(mail, pos);
+                while (buf.hasRemaining()) pos += out.write(buf, pos);
+            }
+
+            fileLock.writeLock().lock();
+            try {
+                long to;
+                synchronized (appendLock) {
+                    to = end;
+                }
+                // records appended since the snapshot: mail, deliveries and users, in order
+                long tailStart = pos;
+                out.position(pos);
+                for (long at = from; at < to; ) at += channel.transferTo(at, to - at, out);
+                pos += to - from;
+                out.force(true);
+                out.close();
+                channel.close();
+                try {
+                    Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } finally {
+                    channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                }
+                long live = 0;
+                for (ArrayDeque<Mail> box : boxes.values()) {
+                    for (Mail mail : box) {
+                        Long moved = offsets.get(mail);
+                        mail.offset = moved != null ? moved : mail.offset - from + tailStart;
+                        live += mail.length;
+                    }
+                }
+                synchronized (appendLock) {
+                    end = pos;
+                }
+                userBytes.set(usersEnd + userBytes.get() - userBytesBefore);
+                liveBytes.set(live);
+                deadBytes.set(pos - live - userBytes.get());
+            } finally {
+                fileLock.writeLock().unlock();
+            }
+        } catch (IOException | RuntimeException e) {
+            try { out.close(); } catch (IOException ignored) { }
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+    }
+}
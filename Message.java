@@ -1,28 +1,75 @@
-import java.time.LocalDateTime;
+import java.nio.charset.StandardCharsets;
 
 public class Message {
     private final String sender;
     private final String recipient; // null for broadcast/system
-    private final String content;
+    private final String room;      // null for the lobby (everyone)
     private final MessageType type;
-    private final String timestamp;
+    private final long timestampMillis;
+    // Content is kept in whichever form it arrived in and converted on first use: chat read off
+    // the wire stays UTF-8 bytes all the way to the encoded frames and the segment log.
+    private volatile String content;
+    private volatile byte[] contentUtf8;
 
-    public Message(String sender, String recipient, String content, MessageType type, String timestamp) {
+    public Message(String sender, String recipient, String content, MessageType type, long timestampMillis) {
+        this(sender, recipient, null, content, type, timestampMillis);
+    }
+
+    public Message(String sender, String recipient, String room, String content, MessageType type,
+                   long timestampMillis) {
         this.sender = sender;
         this.recipient = recipient;
+        this.room = room;
         this.content = content;
         this.type = type;
-        this.timestamp = timestamp;
+        this.timestampMillis = timestampMillis;
+    }
+
+    // contentUtf8 is owned by the message from here on and must not be modified.
+    public Message(String sender, String recipient, byte[] contentUtf8, MessageType type, long timestampMillis) {
+        this(sender, recipient, null, contentUtf8, type, timestampMillis);
+    }
+
+    public Message(String sender, String recipient, String room, byte[] contentUtf8, MessageType type,
+                   long timestampMillis) {
+        this.sender = sender;
+        this.recipient = recipient;
+        this.room = room;
+        this.contentUtf8 = contentUtf8;
+        this.type = type;
+        this.timestampMillis = timestampMillis;
     }
 
     public String getSender() { return sender; }
     public String getRecipient() { return recipient; }
-    public String getContent() { return content; }
+    public String getRoom() { return room; }
     public MessageType getType() { return type; }
-    public String getTimestamp() { return timestamp; }
+    public long getTimestampMillis() { return timestampMillis; }
+    // "yyyy-MM-dd HH:mm:ss", shared for all messages of the same second (see Utils)
+    public String getTimestamp() { return Utils.formatTimestamp(timestampMillis); }
+
+    // Benign races: two threads may both convert, and both results are equal.
+    public String getContent() {
+        String s = content;
+        if (s == null && contentUtf8 != null) {
+            s = new String(contentUtf8, StandardCharsets.UTF_8);
+            content = s;
+        }
+        return s;
+    }
+
+    // Shared UTF-8 bytes - callers must treat them as read-only.
+    public byte[] getContentUtf8() {
+        byte[] b = contentUtf8;
+        if (b == null && content != null) {
+            b = content.getBytes(StandardCharsets.UTF_8);
+            contentUtf8 = b;
+        }
+        return b;
+    }
 
     @Override
     public String toString() {
-        return "[" + timestamp + "] " + (sender != null ? sender : "SYSTEM") + ": " + content;
+        return "[" + getTimestamp() + "] " + (room != null ? "#" + room + " " : "") + (sender != null ? sender : "SYSTEM") + ": " + getContent();
     }
 }
@@ -0,0 +1,155 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// LAN multicast for lobby broadcasts (--multicast=GROUP:PORT). Each broadcast goes out once as
+// a numbered datagram carrying its text line, instead of one TCP write per client, to every
+// client that joined with MCAST. The last `capacity` datagrams are kept: a client that missed
+// some NACKs them over its TCP connection and gets them back there as REPAIR:: lines. Every
+// second a heartbeat with the latest number goes out too, so clients notice a lost tail, and
+// notice when multicast does not reach them at all and ask for TCP instead (MCAST_OFF).
+//
+// Datagram: int magic "LCM1", long epoch, byte kind ('D' data, 'H' heartbeat), long seq, then
+// for data the frame's text line with its '\n'. The epoch is random per server run, so clients
+// ignore another server (or an earlier run) sending to the same group.
+final class MulticastPublisher {
+    static final int MAGIC = 0x4C434D31;
+    static final byte DATA = 'D';
+    static final byte HEARTBEAT = 'H';
+    static final int HEADER_BYTES = 4 + 8 + 1 + 8;
+    // lines longer than this go over TCP to everyone (a datagram tops out just under 64 KB)
+    static final int MAX_LINE_BYTES = 60_000;
+    // most broadcasts one NACK gets back, as many as a receiver asks for at once
+    static final int MAX_REPAIR = 1024;
+    private static final long HEARTBEAT_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final DatagramChannel channel;
+    private final InetSocketAddress group;
+    private final long epoch = ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE;
+    private final TimerWheel timers;
+    // guarded by this: numbering, the retransmit ring and the send itself, so datagrams leave
+    // in sequence order
+    private final byte[][] ring;
+    private final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+    private long nextSeq = 1;
+    private boolean sendFailed;   // logged the current run of send errors
+    private volatile boolean running = true;
+
+    // group "239.255.42.99:5800"; iface may be empty for the OS's choice
+    MulticastPublisher(String group, String iface, int ttl, int capacity, TimerWheel timers) throws IOException {
+        int colon = group.lastIndexOf(':');
+        InetAddress address = InetAddress.getByName(group.substring(0, colon).trim());
+        if (!address.isMulticastAddress()) throw new IOException(address + " is not a multicast address");
+        this.group = new InetSocketAddress(address, Integer.parseInt(group.substring(colon + 1).trim()));
+        this.ring = new byte[capacity][];
+        this.timers = timers;
+        this.channel = DatagramChannel.open(StandardProtocolFamily.INET);
+        channel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, ttl);
+        channel.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, true);
+        if (!iface.isEmpty()) {
+            NetworkInterface nif = NetworkInterface.getByName(iface);
+            if (nif == null) throw new SocketException("No network interface " + iface);
+            channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, nif);
+        }
+        timers.schedule(this::heartbeat, HEARTBEAT_NANOS);
+    }
+
+    String group() { return group.getAddress().getHostAddress() + ":" + group.getPort(); }
+
+    // Sends one broadcast frame; returns its number, or -1 if it is too long for a datagram
+    // (every client then gets it over TCP).
+    synchronized long publish(Frame f) {
+        byte[] line = f.bytes(false);
+        if (line.length > MAX_LINE_BYTES) return -1;
+        long seq = nextSeq++;
+        ring[(int) (seq % ring.length)] = line;
+        send(DATA, seq, line);
+        return seq;
+    }
+
+    // The MCAST:: line for a client joining now: broadcasts from the returned number on reach
+    // it by multicast. Called under this lock so no broadcast is numbered in between.
+    synchronized String enroll(ClientHandler h) {
+        h.multicastFrom(nextSeq);
+        return "MCAST::" + group.getAddress().getHostAddress() + "::" + group.getPort() + "::" + epoch + "::" + nextSeq;
+    }
+
+    // MCAST_OFF: broadcasts from now on reach h over TCP; returns the first of those.
+    synchronized long withdraw(ClientHandler h) {
+        h.multicastUntil(nextSeq);
+        return nextSeq;
+    }
+
+    // REPAIR::<seq>::<line> for every kept broadcast in [from, to], REPAIR_LOST::<a>::<b> for
+    // runs that are no longer kept. At most MAX_REPAIR kept broadcasts are resent, from `from`
+    // on; the client NACKs the rest once these arrive. Null if the range holds nothing that was
+    // ever sent.
+    Frame repair(long from, long to) {
+        long lostFrom = 0, lostTo = 0;
+        long first;
+        byte[][] lines;
+        synchronized (this) {
+            long oldest = Math.max(1, nextSeq - ring.length);
+            from = Math.max(1, from);
+            to = Math.min(to, nextSeq - 1);
+            if (from > to) return null;
+            if (from < oldest) {
+                lostFrom = from;
+                lostTo = Math.min(to, oldest - 1);
+                from = oldest;
+            }
+            to = Math.min(to, from + MAX_REPAIR - 1);
+            first = from;
+            // the ring only swaps whole arrays, so the lines can be read after the lock is let go
+            lines = new byte[(int) Math.max(0, to - from + 1)][];
+            for (int i = 0; i < lines.length; i++) lines[i] = ring[(int) ((from + i) % ring.length)];
+        }
+        List<Frame> frames = new ArrayList<>(lines.length + 1);
+        if (lostTo != 0) frames.add(Frame.of("REPAIR_LOST::" + lostFrom + "::" + lostTo));
+        for (int i = 0; i < lines.length; i++) {
+            byte[] line = lines[i];
+            frames.add(Frame.of("REPAIR::" + (first + i) + "::" + new String(line, 0, line.length - 1, StandardCharsets.UTF_8)));
+        }
+        return frames.size() == 1 ? frames.get(0) : Frame.concat(frames);
+    }
+
+    void close() {
+        running = false;
+        try { channel.close(); } catch (IOException ignored) {}
+    }
+
+    // timer wheel thread
+    private void heartbeat(long now) {
+        if (!running) return;
+        synchronized (this) {
+            send(HEARTBEAT, nextSeq - 1, null);
+        }
+        timers.schedule(this::heartbeat, HEARTBEAT_NANOS);
+    }
+
+    private void send(byte kind, long seq, byte[] line) {
+        header.clear();
+        header.putInt(MAGIC).putLong(epoch).put(kind).putLong(seq).flip();
+        ByteBuffer datagram = line == null ? header
+                : ByteBuffer.allocate(HEADER_BYTES + line.length).put(header).put(line).flip();
+        try {
+            channel.send(datagram, group);
+            sendFailed = false;
+        } catch (IOException e) {
+            // receivers NACK what they missed once the network is back
+            if (!sendFailed && running) System.err.println("Multicast send failed: " + e.getMessage());
+            sendFailed = true;
+        }
+    }
+}
@@ -0,0 +1,189 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+// Client side of server multicast (see MulticastPublisher): joins the group named by the
+// server's MCAST:: line and hands broadcast lines on in sequence order. Datagrams that arrive
+// early wait for the ones before them; a gap still open after NACK_DELAY is NACKed over the TCP
+// connection and filled by the REPAIR:: lines the server answers with. If the group stays
+// silent (heartbeats included) the network does not carry multicast to us: send MCAST_OFF so
+// the server goes back to TCP, and keep taking repairs for what was missed.
+final class MulticastReceiver {
+    private static final long NACK_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(30);
+    private static final long NACK_RETRY_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+    private static final long SILENCE_NANOS = TimeUnit.SECONDS.toNanos(4);
+    private static final int MAX_NACK_RANGE = 1024;
+
+    private final InetAddress group;
+    private final int port;
+    private final long epoch;
+    private final NetworkInterface iface;   // null: the OS's choice
+    private final Consumer<String> deliver;
+    private final Predicate<String> control; // lines for the server over TCP; false if not sent
+    private volatile MulticastSocket socket;
+    private volatile boolean running = true;
+
+    // guarded by this
+    private long expected;          // next number to hand on
+    private long latest;            // highest number seen in a datagram or heartbeat
+    private final TreeMap<Long, String> early = new TreeMap<>();
+    private long gapSince;          // nanoTime the current gap was noticed, 0 if none
+    private long lastNack;
+    private long lastHeard;
+
+    // mcastLine: MCAST::<group>::<port>::<epoch>::<first seq>
+    MulticastReceiver(String mcastLine, NetworkInterface iface, Consumer<String> deliver, Predicate<String> control) throws IOException {
+        String[] parts = mcastLine.split("::");
+        if (parts.length != 5) throw new IOException("Malformed " + mcastLine);
+        this.group = InetAddress.getByName(parts[1]);
+        this.port = Integer.parseInt(parts[2]);
+        this.epoch = Long.parseLong(parts[3]);
+        this.expected = Long.parseLong(parts[4]);
+        this.latest = expected - 1;
+        this.iface = iface;
+        this.deliver = deliver;
+        this.control = control;
+        this.lastHeard = System.nanoTime();
+        this.lastNack = lastHeard - NACK_RETRY_NANOS;
+        Thread t = new Thread(this::run, "MulticastReceiver");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    // REPAIR::<seq>::<line> from the TCP reader
+    void repaired(String repairLine) {
+        String[] parts = repairLine.split("::", 3);
+        if (parts.length != 3) return;
+        try {
+            received(Long.parseLong(parts[1]), parts[2]);
+        } catch (NumberFormatException ignored) { }
+    }
+
+    // REPAIR_LOST::<from>::<to>: the server no longer has them; move past them.
+    void lost(String lostLine) {
+        String[] parts = lostLine.split("::");
+        if (parts.length != 3) return;
+        long to;
+        try {
+            to = Long.parseLong(parts[2]);
+        } catch (NumberFormatException e) {
+            return;
+        }
+        synchronized (this) {
+            long missed = 0;
+            for (; expected <= to; expected++) {
+                String line = early.remove(expected);
+                if (line != null) deliver.accept(line); else missed++;
+            }
+            if (missed > 0) deliver.accept("SYSTEM::" + missed + " broadcast message(s) were lost");
+            drain();
+        }
+    }
+
+    void close() {
+        running = false;
+        MulticastSocket s = socket;
+        if (s != null) s.close();
+    }
+
+    private void run() {
+        byte[] buf = new byte[65536];
+        try (MulticastSocket s = new MulticastSocket(port)) {
+            socket = s;
+            s.joinGroup(new InetSocketAddress(group, 0), iface);
+            s.setSoTimeout(100);
+            DatagramPacket packet = new DatagramPacket(buf, buf.length);
+            while (running) {
+                try {
+                    packet.setLength(buf.length);
+                    s.receive(packet);
+                    onDatagram(ByteBuffer.wrap(buf, 0, packet.getLength()));
+                } catch (SocketTimeoutException e) {
+                    // fall through to the gap and silence checks
+                }
+                String nack;
+                synchronized (this) {
+                    if (System.nanoTime() - lastHeard > SILENCE_NANOS) break;
+                    nack = gapToNack(System.nanoTime());
+                }
+                if (nack != null) control.test(nack); // not under the lock: this writes to TCP
+            }
+        } catch (IOException e) {
+            if (!running) return;
+        }
+        if (running) giveUp();
+    }
+
+    private void onDatagram(ByteBuffer b) {
+        if (b.remaining() < MulticastPublisher.HEADER_BYTES || b.getInt() != MulticastPublisher.MAGIC
+                || b.getLong() != epoch) {
+            return; // not ours, or an earlier run of the server
+        }
+        byte kind = b.get();
+        long seq = b.getLong();
+        synchronized (this) {
+            lastHeard = System.nanoTime();
+            latest = Math.max(latest, seq);
+        }
+        if (kind == MulticastPublisher.DATA && b.remaining() > 0) {
+            // the line ends in '\n'
+            String line = new String(b.array(), b.position(), b.remaining() - 1, StandardCharsets.UTF_8);
+            received(seq, line);
+        }
+    }
+
+    private synchronized void received(long seq, String line) {
+        latest = Math.max(latest, seq);
+        if (seq < expected || early.containsKey(seq)) return; // duplicate
+        early.put(seq, line);
+        drain();
+    }
+
+    private void drain() {
+        Map.Entry<Long, String> next;
+        while ((next = early.firstEntry()) != null && next.getKey() == expected) {
+            early.pollFirstEntry();
+            expected++;
+            deliver.accept(next.getValue());
+        }
+        if (expected > latest) gapSince = 0;
+    }
+
+    // Receiver thread, after every datagram or 100 ms of none: the NACK for a gap that has
+    // stayed open too long (again if the repair has not come), or null.
+    private String gapToNack(long now) {
+        if (latest < expected) return null;
+        if (gapSince == 0) gapSince = now;
+        if (now - gapSince < NACK_DELAY_NANOS || now - lastNack < NACK_RETRY_NANOS) return null;
+        lastNack = now;
+        long to = early.isEmpty() ? latest : early.firstKey() - 1;
+        return "NACK::" + expected + "::" + Math.min(to, expected + MAX_NACK_RANGE - 1);
+    }
+
+    // The server must hear this one, so keep trying while the client reconnects.
+    private void giveUp() {
+        long from;
+        synchronized (this) {
+            from = expected;
+        }
+        deliver.accept("SYSTEM::Multicast is not reaching this client; receiving broadcasts over TCP");
+        while (running && !control.test("MCAST_OFF::" + from)) {
+            try {
+                Thread.sleep(500);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+}
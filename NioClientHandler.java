@@ -0,0 +1,151 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Non-blocking connection driven by an NioServer event loop: ClientHandler's protocol over a
+// SocketChannel read and written on the loop thread.
+public class NioClientHandler extends ClientHandler {
+    private static final int MAX_GATHER = 64;
+
+    private final SocketChannel channel;
+    private final NioServer.EventLoop loop;
+    private SelectionKey key;
+    // loop-thread only: frames taken off the outbound queue that are not fully written yet
+    private final ArrayDeque<ByteBuffer> inFlight = new ArrayDeque<>();
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    NioClientHandler(SocketChannel channel, ChatServer server, NioServer.EventLoop loop) {
+        super(server);
+        this.channel = channel;
+        this.loop = loop;
+    }
+
+    void attach(SelectionKey key) {
+        this.key = key;
+    }
+
+    // Drains happen on the loop thread, directly if we are already on it.
+    @Override
+    protected void scheduleDrain() {
+        if (closed.get()) return;
+        if (loop.inLoop()) {
+            onWritable();
+        } else if (flushScheduled.compareAndSet(false, true)) {
+            loop.execute(() -> {
+                flushScheduled.set(false);
+                onWritable();
+            });
+        }
+    }
+
+    @Override
+    public void kickAndClose() {
+        if (kickOwnerInstead()) return;
+        active = false;
+        loop.execute(this::close);
+    }
+
+    @Override
+    protected void abort() {
+        active = false;
+        clearOutbound();
+        loop.execute(this::close);
+    }
+
+    // Called on the loop thread when the channel is readable.
+    void onReadable() {
+        try {
+            int n = decoder.readFrom(channel);
+            if (n < 0) {
+                close();
+                return;
+            }
+            metrics.bytesIn.add(n);
+            while (active && decoder.next()) {
+                if (!handleFrame()) {
+                    close();
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            // read error, oversized or malformed frame
+            close();
+            return;
+        }
+        if (!active) close();
+    }
+
+    // Called on the loop thread: gather queued frames into as few writes as the socket
+    // accepts, then wait for OP_WRITE if it is full.
+    void onWritable() {
+        if (closed.get() || !key.isValid()) return;
+        try {
+            while (true) {
+                Frame f;
+                while (inFlight.size() < MAX_GATHER && (f = pollOutbound()) != null) {
+                    writeFrame(f);
+                }
+                if (inFlight.isEmpty()) break;
+
+                int n = Math.min(inFlight.size(), MAX_GATHER);
+                int i = 0;
+                for (ByteBuffer b : inFlight) {
+                    if (i == n) break;
+                    gather[i++] = b;
+                }
+                channel.write(gather, 0, n);
+                while (!inFlight.isEmpty() && !inFlight.peek().hasRemaining()) inFlight.poll();
+                Arrays.fill(gather, 0, n, null);
+
+                if (!inFlight.isEmpty()) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    @Override
+    protected void writeBytes(byte[] bytes) {
+        inFlight.add(ByteBuffer.wrap(bytes));
+    }
+
+    @Override
+    protected void writeShared(Frame f, boolean binary) {
+        inFlight.add(f.buffer(binary));
+    }
+
+    // Loop thread only. Runs the shared cleanup exactly once.
+    void close() {
+        if (!closed.compareAndSet(false, true)) return;
+        active = false;
+        cleanup();
+    }
+
+    @Override
+    protected void closeTransport() {
+        // best effort: push out anything already queued (e.g. a kick notice)
+        try {
+            Frame f;
+            while ((f = pollOutbound()) != null) writeFrame(f);
+            ByteBuffer buf;
+            while ((buf = inFlight.poll()) != null) {
+                channel.write(buf);
+                if (buf.hasRemaining()) break;
+            }
+        } catch (IOException ignored) {}
+        inFlight.clear();
+        clearOutbound();
+        if (key != null) key.cancel();
+        try { channel.close(); } catch (IOException ignored) {}
+    }
+}
@@ -0,0 +1,142 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// Selector-based transport: one acceptor thread hands sockets round-robin to a small
+// number of event loops, each multiplexing thousands of non-blocking connections.
+public class NioServer {
+    private final ChatServer server;
+    private final int port;
+    private final EventLoop[] loops;
+    private ServerSocketChannel serverChannel;
+    private Selector acceptSelector;
+    private volatile boolean running = true;
+
+    public NioServer(ChatServer server, int port, int loopCount) {
+        this.server = server;
+        this.port = port;
+        this.loops = new EventLoop[loopCount];
+    }
+
+    // Runs the accept loop on the calling thread until close() is called.
+    public void run() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port), 1024);
+        serverChannel.configureBlocking(false);
+        acceptSelector = Selector.open();
+        serverChannel.register(acceptSelector, SelectionKey.OP_ACCEPT);
+
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(i);
+            loops[i].start();
+        }
+        System.out.println("NIO mode: " + loops.length + " event loop(s)");
+
+        int next = 0;
+        while (running) {
+            acceptSelector.select();
+            if (!running) break;
+            acceptSelector.selectedKeys().clear();
+            SocketChannel ch;
+            while ((ch = serverChannel.accept()) != null) {
+                if (!server.admit()) {
+                    try { ch.write(ByteBuffer.wrap(ChatServer.SERVER_BUSY)); } catch (IOException ignored) {}
+                    try { ch.close(); } catch (IOException ignored) {}
+                    continue;
+                }
+                ch.configureBlocking(false);
+                ch.socket().setTcpNoDelay(true);
+                loops[next].register(ch);
+                next = (next + 1) % loops.length;
+            }
+        }
+    }
+
+    public void close() {
+        running = false;
+        try { if (acceptSelector != null) acceptSelector.wakeup(); } catch (Exception ignored) {}
+        try { if (serverChannel != null) serverChannel.close(); } catch (IOException ignored) {}
+        for (EventLoop loop : loops) {
+            if (loop != null) loop.shutdown();
+        }
+    }
+
+    final class EventLoop extends Thread {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        EventLoop(int index) throws IOException {
+            super("NioEventLoop-" + index);
+            setDaemon(true);
+            this.selector = Selector.open();
+        }
+
+        void register(SocketChannel ch) {
+            execute(() -> {
+                try {
+                    NioClientHandler handler = new NioClientHandler(ch, server, this);
+                    handler.attach(ch.register(selector, SelectionKey.OP_READ, handler));
+                    handler.startTimeouts();
+                } catch (IOException e) {
+                    server.connectionClosed(false);
+                    try { ch.close(); } catch (IOException ignored) {}
+                }
+            });
+        }
+
+        // Run a task on this loop's thread (used for cross-thread writes and closes).
+        void execute(Runnable task) {
+            tasks.add(task);
+            if (Thread.currentThread() != this) selector.wakeup();
+        }
+
+        boolean inLoop() {
+            return Thread.currentThread() == this;
+        }
+
+        void shutdown() {
+            execute(() -> {
+                for (SelectionKey key : selector.keys()) {
+                    if (key.attachment() instanceof NioClientHandler) {
+                        ((NioClientHandler) key.attachment()).close();
+                    }
+                }
+                try { selector.close(); } catch (IOException ignored) {}
+            });
+        }
+
+        @Override
+        public void run() {
+            while (running && selector.isOpen()) {
+                try {
+                    // A task queued from this thread did not wake the selector; don't block on it.
+                    if (tasks.isEmpty()) selector.select(); else selector.selectNow();
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) task.run();
+                    if (!selector.isOpen()) break;
+
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        NioClientHandler handler = (NioClientHandler) key.attachment();
+                        if (!key.isValid()) {
+                            handler.close();
+                            continue;
+                        }
+                        if (key.isWritable()) handler.onWritable();
+                        if (key.isValid() && key.isReadable()) handler.onReadable();
+                    }
+                } catch (ClosedSelectorException e) {
+                    break;
+                } catch (IOException e) {
+                    if (running) System.err.println(getName() + " error: " + e.getMessage());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,113 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Join/leave notices, coalesced. The first event after a quiet period is announced at once;
+// events arriving within the window after a notice are collected and announced together when
+// the window closes ("12 users joined (...), 3 left (...)"), and a user who leaves and comes
+// back within one window is not announced at all. A reconnect storm of n clients then costs
+// every client a handful of notices instead of 2n, and the JOIN/LEFT log lines are written as
+// one batch per notice.
+public final class PresenceNotifier {
+    private static final int MAX_NAMES = 10;
+
+    private final ChatServer server;
+    private final long windowNanos;
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "Presence");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // guarded by this
+    private List<String> joined = new ArrayList<>();
+    private List<String> left = new ArrayList<>();
+    private List<String> logLines = new ArrayList<>();
+    private long lastNotice = System.nanoTime() - Long.MAX_VALUE / 2;
+    private boolean flushScheduled;
+    private boolean stopped;    // after shutdown every event is sent at once
+
+    PresenceNotifier(ChatServer server, long windowMillis) {
+        this.server = server;
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, windowMillis));
+    }
+
+    public void joined(String username) {
+        event(username, true);
+    }
+
+    public void left(String username) {
+        event(username, false);
+    }
+
+    // Sends what is still pending here, before the logs close, rather than on the timer.
+    void shutdown() {
+        synchronized (this) {
+            stopped = true;
+        }
+        flush();
+        timer.shutdownNow();
+    }
+
+    private void event(String username, boolean join) {
+        String line = (join ? "JOIN: " : "LEFT: ") + username + " at " + Utils.timestamp();
+        synchronized (this) {
+            logLines.add(line);
+            // a leave cancels a join nobody has been told about yet, and vice versa
+            if (!(join ? left : joined).remove(username)) (join ? joined : left).add(username);
+            if (flushScheduled && !stopped) return;
+            long sinceLast = System.nanoTime() - lastNotice;
+            if (sinceLast < windowNanos && !stopped) {
+                flushScheduled = true;
+                timer.schedule(this::flush, windowNanos - sinceLast, TimeUnit.NANOSECONDS);
+                return;
+            }
+        }
+        flush();
+    }
+
+    private void flush() {
+        List<String> j, l, lines;
+        synchronized (this) {
+            j = joined;
+            l = left;
+            lines = logLines;
+            joined = new ArrayList<>();
+            left = new ArrayList<>();
+            logLines = new ArrayList<>();
+            flushScheduled = false;
+            lastNotice = System.nanoTime();
+        }
+        if (!j.isEmpty() || !l.isEmpty()) {
+            server.broadcast(new Message("SERVER", null, describe(j, l), MessageType.SYSTEM, Utils.currentTimeMillis()));
+        }
+        for (String line : lines) server.log(line);
+    }
+
+    // Single events keep the old wording, which clients may be matching on.
+    static String describe(List<String> joined, List<String> left) {
+        if (joined.size() == 1 && left.isEmpty()) return joined.get(0) + " joined the chat.";
+        if (left.size() == 1 && joined.isEmpty()) return left.get(0) + " left the chat.";
+        StringBuilder sb = new StringBuilder();
+        if (!joined.isEmpty()) sb.append(count(joined)).append(" joined ").append(names(joined));
+        if (!left.isEmpty()) {
+            if (sb.length() > 0) sb.append(", ");
+            sb.append(count(left)).append(" left ").append(names(left));
+        }
+        return sb.append('.').toString();
+    }
+
+    private static String count(List<String> users) {
+        return users.size() == 1 ? "1 user" : users.size() + " users";
+    }
+
+    private static String names(List<String> users) {
+        int shown = Math.min(users.size(), MAX_NAMES);
+        StringBuilder sb = new StringBuilder("(");
+        sb.append(String.join(", ", users.subList(0, shown)));
+        if (users.size() > shown) sb.append(" and ").append(users.size() - shown).append(" more");
+        return sb.append(')').toString();
+    }
+}
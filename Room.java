@@ -0,0 +1,52 @@
+import java.util.Arrays;
+
+// A chat room: a named set of member handlers. The member array is copy-on-write, so a
+// broadcast reads one volatile field and iterates a plain array without locking; joins and
+// leaves (rare next to messages) copy it under the room's monitor.
+public final class Room {
+    private static final ClientHandler[] EMPTY = new ClientHandler[0];
+
+    private final String name;
+    private volatile ClientHandler[] members = EMPTY;
+    // set once the last member left and the room was removed from the server's map; a join
+    // that races with the removal sees it and retries with a fresh room
+    private boolean closed;
+
+    Room(String name) {
+        this.name = name;
+    }
+
+    public String getName() { return name; }
+
+    // Snapshot for iteration; never modified after publication.
+    public ClientHandler[] members() { return members; }
+
+    public int size() { return members.length; }
+
+    // false if the room was closed in the meantime
+    synchronized boolean add(ClientHandler h) {
+        if (closed) return false;
+        ClientHandler[] cur = members;
+        for (ClientHandler m : cur) {
+            if (m == h) return true;
+        }
+        ClientHandler[] next = Arrays.copyOf(cur, cur.length + 1);
+        next[cur.length] = h;
+        members = next;
+        return true;
+    }
+
+    // Returns true if h was a member. Closes the room when it becomes empty.
+    synchronized boolean remove(ClientHandler h) {
+        ClientHandler[] cur = members;
+        int i = 0;
+        while (i < cur.length && cur[i] != h) i++;
+        if (i == cur.length) return false;
+        ClientHandler[] next = cur.length == 1 ? EMPTY : new ClientHandler[cur.length - 1];
+        System.arraycopy(cur, 0, next, 0, i);
+        System.arraycopy(cur, i + 1, next, i, cur.length - i - 1);
+        members = next;
+        if (next.length == 0) closed = true;
+        return true;
+    }
+}
@@ -0,0 +1,578 @@
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+// Full-text index over the segment log: term -> offsets of the records that contain it. Terms
+// are the lower-cased words of the content plus from:<sender>, to:<recipient>, room:<room> and
+// type:<type>, so sender, type and room filters are just more posting lists to intersect.
+//
+// Records are added on the ChatLog writer thread right after they are appended to the log, into
+// an in-memory index. Every FLUSH_DOCS records it is written out as an immutable index segment
+//
+//   <dir>/<firstOffset>.sidx   magic:int | level:int | firstOffset:long | lastOffset:long
+//                              | coveredUpTo:long | minMillis:long | maxMillis:long | docs:int
+//                              | terms:int | per term (sorted): term:UTF | count:varint
+//                              | bytes:varint | offsets as varint deltas
+//
+// and MERGE_FACTOR consecutive segments of the same level are merged into one of the next level,
+// so a log of millions of records is covered by a handful of files. Merges (and dropping segments
+// wholly deleted by log retention) run on their own thread, never the writer's; that thread is
+// the only one that removes segments. Segment files are mapped rather than read: only their
+// term dictionaries live on the heap, and a posting list is decoded when a query needs it. On
+// startup whatever the log holds past the newest segment's coveredUpTo is indexed again.
+// Queries read posting lists under no lock except a short copy of the segment list and the
+// in-memory part.
+public final class SearchIndex implements Closeable {
+    private static final int MAGIC = 0x53494458; // "SIDX"
+    private static final int FLUSH_DOCS = 50_000;
+    private static final int MERGE_FACTOR = 4;
+    private static final int MAX_TERM = 64;
+    // records read back from the log per query before giving up on filling the limit
+    private static final int MAX_CANDIDATES = 10_000;
+
+    private final Path dir;
+    private final SegmentedLog log;
+    private final List<IndexSegment> segments = new CopyOnWriteArrayList<>(); // oldest first
+    private final ExecutorService merger = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "SearchIndexMerge");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // in-memory part, guarded by this
+    private final Map<String, LongList> live = new HashMap<>();
+    private int liveDocs;
+    private int flushAt = FLUSH_DOCS;   // raised by FLUSH_DOCS after a failed flush (writer thread)
+    private long liveFirst;
+    private long liveLast;
+    private long liveMin = Long.MAX_VALUE;
+    private long liveMax = Long.MIN_VALUE;
+
+    public SearchIndex(Path dir, SegmentedLog log) throws IOException {
+        this.dir = dir;
+        this.log = log;
+        Files.createDirectories(dir);
+        List<Path> files = new ArrayList<>();
+        try (Stream<Path> list = Files.list(dir)) {
+            list.filter(p -> p.getFileName().toString().endsWith(".sidx")).forEach(files::add);
+        }
+        files.sort(null); // zero-padded offsets: name order is offset order
+        for (Path p : files) {
+            try {
+                IndexSegment s = IndexSegment.load(p);
+                IndexSegment prev = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+                if (prev != null && s.firstOffset <= prev.lastOffset) {
+                    Files.delete(p); // left over from a merge that did not finish
+                    continue;
+                }
+                segments.add(s);
+            } catch (IOException e) {
+                System.err.println("Search index: ignoring unreadable " + p.getFileName() + ": " + e.getMessage());
+            }
+        }
+        dropExpired();
+        long from = segments.isEmpty() ? 0 : segments.get(segments.size() - 1).coveredUpTo;
+        if (from < log.endOffset()) {
+            long start = System.nanoTime();
+            int[] count = {0};
+            log.readFrom(from, (offset, ts, m) -> {
+                add(offset, m);
+                count[0]++;
+                return true;
+            });
+            if (count[0] > 0) {
+                System.out.printf("Search index: indexed %d record(s) in %d ms%n", count[0],
+                        (System.nanoTime() - start) / 1_000_000);
+            }
+        }
+    }
+
+    // ChatLog writer thread, after the record at offset was appended.
+    public void add(long offset, Message m) {
+        synchronized (this) {
+            forEachTerm(m, term -> live.computeIfAbsent(term, t -> new LongList()).addOnce(offset));
+            if (liveDocs++ == 0) liveFirst = offset;
+            liveLast = offset;
+            liveMin = Math.min(liveMin, m.getTimestampMillis());
+            liveMax = Math.max(liveMax, m.getTimestampMillis());
+        }
+        if (liveDocs >= flushAt) {
+            try {
+                flush();
+                flushAt = FLUSH_DOCS;
+            } catch (IOException e) {
+                // e.g. a full disk: try again FLUSH_DOCS documents later, not on every add
+                flushAt = liveDocs + FLUSH_DOCS;
+                System.err.println("Search index flush failed: " + e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            flush();
+        } catch (IOException e) {
+            System.err.println("Search index flush failed: " + e.getMessage());
+        }
+        merger.shutdown();
+        try {
+            merger.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Writer thread: persist the in-memory part; the merge thread takes it from there.
+    private void flush() throws IOException {
+        Map<String, long[]> terms = new TreeMap<>();
+        long first, last, min, max;
+        int docs;
+        synchronized (this) {
+            if (liveDocs == 0) return;
+            for (Map.Entry<String, LongList> e : live.entrySet()) terms.put(e.getKey(), e.getValue().toArray());
+            first = liveFirst;
+            last = liveLast;
+            min = liveMin;
+            max = liveMax;
+            docs = liveDocs;
+        }
+        IndexSegment seg = IndexSegment.write(dir, 0, first, last, log.endOffset(), min, max, docs, terms);
+        synchronized (this) {
+            // searches see either the live entries or the new segment, never neither
+            segments.add(seg);
+            live.clear();
+            liveDocs = 0;
+            liveMin = Long.MAX_VALUE;
+            liveMax = Long.MIN_VALUE;
+        }
+        try {
+            merger.execute(this::compact);
+        } catch (RejectedExecutionException e) {
+            // closing: the next start merges
+        }
+    }
+
+    // Merge thread.
+    private void compact() {
+        try {
+            mergeLevels();
+            dropExpired();
+        } catch (IOException e) {
+            System.err.println("Search index merge failed: " + e.getMessage());
+        }
+    }
+
+    // Merge thread. The writer only appends meanwhile, so the group is still in place, in
+    // order, when the merged segment replaces it.
+    private void mergeLevels() throws IOException {
+        List<IndexSegment> group;
+        while ((group = mergeable()) != null) {
+            IndexSegment merged = IndexSegment.merge(dir, group);
+            synchronized (this) {
+                int at = segments.indexOf(group.get(0));
+                segments.removeAll(group);
+                segments.add(at, merged);
+            }
+            for (IndexSegment s : group) {
+                if (!s.path.equals(merged.path)) Files.deleteIfExists(s.path);
+            }
+        }
+    }
+
+    // The newest run of MERGE_FACTOR consecutive segments of one level, or null.
+    private synchronized List<IndexSegment> mergeable() {
+        for (int end = segments.size(); end >= MERGE_FACTOR; end--) {
+            int level = segments.get(end - 1).level;
+            int start = end - MERGE_FACTOR;
+            boolean same = true;
+            for (int i = start; i < end && same; i++) same = segments.get(i).level == level;
+            if (same) return new ArrayList<>(segments.subList(start, end));
+        }
+        return null;
+    }
+
+    // Index segments that only point at records log retention has deleted. Merge thread (or the
+    // constructor, before any merge is queued).
+    private void dropExpired() throws IOException {
+        long start = log.startOffset();
+        for (IndexSegment s : segments) {
+            if (s.lastOffset >= start) break;
+            segments.remove(s);
+            Files.deleteIfExists(s.path);
+        }
+    }
+
+    // Newest matches first, at most limit of them, each passing visible.
+    public List<Message> search(Query q, int limit, Predicate<Message> visible) throws IOException {
+        List<Message> hits = new ArrayList<>();
+        int[] budget = {MAX_CANDIDATES};
+        long[] liveMatches;
+        List<IndexSegment> snapshot;
+        synchronized (this) {
+            snapshot = new ArrayList<>(segments);
+            liveMatches = liveDocs > 0 && overlaps(q, liveMin, liveMax) ? intersect(q, live::get) : null;
+        }
+        if (liveMatches != null && !collect(liveMatches, q, limit, visible, hits, budget)) return hits;
+        for (int i = snapshot.size() - 1; i >= 0; i--) {
+            IndexSegment s = snapshot.get(i);
+            if (!overlaps(q, s.minMillis, s.maxMillis)) continue;
+            long[] matches = intersect(q, s::postings);
+            if (matches != null && !collect(matches, q, limit, visible, hits, budget)) break;
+        }
+        return hits;
+    }
+
+    private static boolean overlaps(Query q, long min, long max) {
+        return max >= q.fromMillis && min <= q.toMillis;
+    }
+
+    private interface Postings {
+        Object get(String term);
+    }
+
+    // All terms' posting lists intersected, ascending; null if some term is absent.
+    private static long[] intersect(Query q, Postings source) {
+        long[] result = null;
+        for (String term : q.terms) {
+            Object p = source.get(term);
+            if (p == null) return null;
+            long[] list = p instanceof LongList ? ((LongList) p).toArray() : (long[]) p;
+            result = result == null ? list : intersect(result, list);
+            if (result.length == 0) return null;
+        }
+        return result;
+    }
+
+    private static long[] intersect(long[] a, long[] b) {
+        long[] out = new long[Math.min(a.length, b.length)];
+        int i = 0, j = 0, n = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) i++;
+            else if (a[i] > b[j]) j++;
+            else {
+                out[n++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(out, n);
+    }
+
+    // Newest first; false once the limit or the read budget is used up.
+    private boolean collect(long[] offsets, Query q, int limit, Predicate<Message> visible, List<Message> hits,
+                            int[] budget) throws IOException {
+        for (int i = offsets.length - 1; i >= 0; i--) {
+            if (hits.size() >= limit || budget[0]-- <= 0) return false;
+            Message m = log.readAt(offsets[i]);
+            if (m == null) return false; // older records are gone too
+            long ts = m.getTimestampMillis();
+            if (ts < q.fromMillis || ts > q.toMillis || !visible.test(m)) continue;
+            hits.add(m);
+        }
+        return hits.size() < limit;
+    }
+
+    static void forEachTerm(Message m, Consumer<String> out) {
+        tokenize(m.getContent(), out);
+        field("from:", m.getSender(), out);
+        field("to:", m.getRecipient(), out);
+        field("room:", m.getRoom(), out);
+        out.accept("type:" + m.getType().name().toLowerCase(Locale.ROOT));
+    }
+
+    // Filter terms are capped like words, so no name makes a term too long to write.
+    private static void field(String prefix, String value, Consumer<String> out) {
+        if (value != null && value.length() <= MAX_TERM) out.accept(prefix + value.toLowerCase(Locale.ROOT));
+    }
+
+    // Words: runs of letters and digits, lower-cased; overlong runs are not indexed.
+    static void tokenize(String text, Consumer<String> out) {
+        if (text == null) return;
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean word = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (word && start < 0) {
+                start = i;
+            } else if (!word && start >= 0) {
+                if (i - start <= MAX_TERM) out.accept(text.substring(start, i).toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+        }
+    }
+
+    // SEARCH:: syntax: words (all must match) and filters from:<user> to:<user> room:<room>
+    // type:<chat|private|system> since:<yyyy-MM-dd> until:<yyyy-MM-dd>.
+    public static final class Query {
+        final List<String> terms = new ArrayList<>();
+        long fromMillis = Long.MIN_VALUE;
+        long toMillis = Long.MAX_VALUE;
+
+        public static Query parse(String text) {
+            Query q = new Query();
+            for (String token : text.trim().split("\\s+")) {
+                if (token.isEmpty()) continue;
+                String lower = token.toLowerCase(Locale.ROOT);
+                if (lower.startsWith("since:")) {
+                    q.fromMillis = startOfDay(token.substring(6), 0);
+                } else if (lower.startsWith("until:")) {
+                    q.toMillis = startOfDay(token.substring(6), 1) - 1;
+                } else if (lower.startsWith("from:") || lower.startsWith("to:") || lower.startsWith("room:")
+                        || lower.startsWith("type:")) {
+                    q.terms.add(lower);
+                } else {
+                    tokenize(token, q.terms::add);
+                }
+            }
+            if (q.terms.isEmpty()) throw new IllegalArgumentException("give at least one word or from:/to:/room:/type: filter");
+            return q;
+        }
+
+        private static long startOfDay(String date, int plusDays) {
+            try {
+                return LocalDate.parse(date).plusDays(plusDays).atStartOfDay(ZoneId.systemDefault())
+                        .toInstant().toEpochMilli();
+            } catch (DateTimeParseException e) {
+                throw new IllegalArgumentException("dates are yyyy-MM-dd: " + date);
+            }
+        }
+    }
+
+    // Growable posting list for the in-memory part; offsets arrive in increasing order.
+    private static final class LongList {
+        long[] values = new long[4];
+        int size;
+
+        void addOnce(long v) {
+            if (size > 0 && values[size - 1] == v) return; // word repeated in one message
+            if (size == values.length) values = Arrays.copyOf(values, size * 2);
+            values[size++] = v;
+        }
+
+        long[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+
+    // One immutable .sidx file, mapped read-only: the term -> (position, count) dictionary is on
+    // the heap, posting lists are decoded from the mapping on demand.
+    private static final class IndexSegment {
+        final Path path;
+        final int level;
+        final long firstOffset;
+        final long lastOffset;
+        final long coveredUpTo;
+        final long minMillis;
+        final long maxMillis;
+        final int docs;
+        private final MappedByteBuffer data;           // absolute reads only: shared by queries
+        private final Map<String, long[]> dictionary;  // term -> {position, count}
+        private final String[] terms;                  // file order, which is sorted
+
+        private IndexSegment(Path path) throws IOException {
+            this.path = path;
+            try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+                data = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            }
+            ByteBuffer in = data.duplicate();
+            try {
+                if (in.getInt() != MAGIC) throw new IOException("not a search index segment");
+                level = in.getInt();
+                firstOffset = in.getLong();
+                lastOffset = in.getLong();
+                coveredUpTo = in.getLong();
+                minMillis = in.getLong();
+                maxMillis = in.getLong();
+                docs = in.getInt();
+                int count = in.getInt();
+                if (count < 0) throw new IOException("bad term count");
+                dictionary = new HashMap<>(count * 2);
+                terms = new String[count];
+                for (int i = 0; i < count; i++) {
+                    String term = readUTF(in);
+                    long postings = readVarint(in);
+                    int bytes = (int) readVarint(in);
+                    if (bytes < 0 || bytes > in.remaining()) throw new IOException("segment cut short");
+                    dictionary.put(term, new long[] {in.position(), postings});
+                    terms[i] = term;
+                    in.position(in.position() + bytes);
+                }
+            } catch (java.nio.BufferUnderflowException e) {
+                throw new IOException("segment cut short");
+            }
+        }
+
+        static IndexSegment load(Path path) throws IOException {
+            return new IndexSegment(path);
+        }
+
+        long[] postings(String term) {
+            long[] entry = dictionary.get(term);
+            if (entry == null) return null;
+            long[] out = new long[(int) entry[1]];
+            int[] pos = {(int) entry[0]};
+            long prev = 0;
+            for (int i = 0; i < out.length; i++) {
+                prev += readVarint(data, pos);
+                out[i] = prev;
+            }
+            return out;
+        }
+
+        // terms: sorted term -> ascending offsets, taken one at a time, so a merge holds one
+        // term's postings in memory rather than the whole segment.
+        static IndexSegment write(Path dir, int level, long first, long last, long coveredUpTo, long min, long max,
+                                  int docs, int termCount, Iterator<Map.Entry<String, long[]>> terms) throws IOException {
+            Path path = dir.resolve(String.format("%020d.sidx", first));
+            Path tmp = dir.resolve(path.getFileName() + ".tmp");
+            try {
+                writeTerms(tmp, level, first, last, coveredUpTo, min, max, docs, termCount, terms);
+            } catch (IOException | RuntimeException e) {
+                Files.deleteIfExists(tmp);
+                throw e;
+            }
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return new IndexSegment(path);
+        }
+
+        private static void writeTerms(Path tmp, int level, long first, long last, long coveredUpTo, long min,
+                                       long max, int docs, int termCount,
+                                       Iterator<Map.Entry<String, long[]>> terms) throws IOException {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 16))) {
+                out.writeInt(MAGIC);
+                out.writeInt(level);
+                out.writeLong(first);
+                out.writeLong(last);
+                out.writeLong(coveredUpTo);
+                out.writeLong(min);
+                out.writeLong(max);
+                out.writeInt(docs);
+                out.writeInt(termCount);
+                ByteArrayOutputStream list = new ByteArrayOutputStream();
+                while (terms.hasNext()) {
+                    Map.Entry<String, long[]> e = terms.next();
+                    long[] offsets = e.getValue();
+                    list.reset();
+                    long prev = 0;
+                    for (long o : offsets) {
+                        writeVarint(list, o - prev);
+                        prev = o;
+                    }
+                    out.writeUTF(e.getKey());
+                    writeVarint(out, offsets.length);
+                    writeVarint(out, list.size());
+                    list.writeTo(out);
+                }
+            }
+        }
+
+        static IndexSegment write(Path dir, int level, long first, long last, long coveredUpTo, long min, long max,
+                                  int docs, Map<String, long[]> terms) throws IOException {
+            return write(dir, level, first, last, coveredUpTo, min, max, docs, terms.size(), terms.entrySet().iterator());
+        }
+
+        // Segments are consecutive, oldest first, so concatenated posting lists stay sorted.
+        static IndexSegment merge(Path dir, List<IndexSegment> group) throws IOException {
+            TreeSet<String> all = new TreeSet<>();
+            long min = Long.MAX_VALUE, max = Long.MIN_VALUE;
+            int docs = 0;
+            for (IndexSegment s : group) {
+                all.addAll(Arrays.asList(s.terms));
+                min = Math.min(min, s.minMillis);
+                max = Math.max(max, s.maxMillis);
+                docs += s.docs;
+            }
+            Iterator<String> names = all.iterator();
+            Iterator<Map.Entry<String, long[]>> terms = new Iterator<Map.Entry<String, long[]>>() {
+                @Override
+                public boolean hasNext() {
+                    return names.hasNext();
+                }
+
+                @Override
+                public Map.Entry<String, long[]> next() {
+                    String term = names.next();
+                    long[] joined = new long[0];
+                    for (IndexSegment s : group) {
+                        long[] add = s.postings(term);
+                        if (add == null) continue;
+                        int have = joined.length;
+                        joined = Arrays.copyOf(joined, have + add.length);
+                        System.arraycopy(add, 0, joined, have, add.length);
+                    }
+                    return Map.entry(term, joined);
+                }
+            };
+            IndexSegment first = group.get(0), last = group.get(group.size() - 1);
+            return write(dir, first.level + 1, first.firstOffset, last.lastOffset, last.coveredUpTo, min, max, docs,
+                    all.size(), terms);
+        }
+    }
+
+    private static void writeVarint(OutputStream out, long v) throws IOException {
+        while ((v & ~0x7FL) != 0) {
+            out.write((int) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        out.write((int) v);
+    }
+
+    private static long readVarint(ByteBuffer in) throws IOException {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.get() & 0xFF;
+            v |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return v;
+        }
+        throw new IOException("malformed varint");
+    }
+
+    private static long readVarint(ByteBuffer data, int[] pos) {
+        long v = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = data.get(pos[0]++) & 0xFF;
+            v |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return v;
+        }
+    }
+
+    // Terms are written with writeUTF (modified UTF-8), so read them back the same way.
+    private static String readUTF(ByteBuffer in) throws IOException {
+        int length = Short.toUnsignedInt(in.getShort(in.position()));
+        byte[] bytes = new byte[2 + length];
+        in.get(bytes);
+        return new DataInputStream(new ByteArrayInputStream(bytes)).readUTF();
+    }
+}
@@ -0,0 +1,476 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+// Binary message store split into fixed-size, memory-mapped segment files.
+//
+//   <dir>/<baseOffset>.log   records, appended through a MappedByteBuffer
+//   <dir>/<baseOffset>.idx   sparse index: (timestampMillis:long, position:int) every INDEX_INTERVAL bytes
+//
+// Offsets are global byte positions (segment base + position), so they stay valid across rolls.
+// Record: length:int | timestamp:long | type:byte | sender | recipient | content [| room]
+// where each string is length:int (-1 for null) followed by UTF-8 bytes. Room messages set
+// ROOM_FLAG in the type byte and append the room name. A zero length marks the end of a
+// segment's data (mapped files are pre-sized and zero-filled).
+//
+// One thread appends (the ChatLog writer); any thread may read.
+public class SegmentedLog implements Closeable {
+    private static final int INDEX_INTERVAL = 4096;
+    private static final int MAX_RECORD = 1 << 20;
+    private static final int ROOM_FLAG = 0x80;
+
+    public interface Visitor {
+        // return false to stop the scan
+        boolean visit(long offset, long timestampMillis, Message m);
+    }
+
+    private final Path dir;
+    private final int segmentBytes;
+    private final long retentionBytes;
+    private final long retentionMillis;
+    private final boolean readOnly;
+    private final List<Segment> segments = new CopyOnWriteArrayList<>();
+    private Segment active;
+
+    public SegmentedLog(Path dir, int segmentBytes, long retentionBytes, long retentionMillis) throws IOException {
+        this(dir, segmentBytes, retentionBytes, retentionMillis, false);
+    }
+
+    // Open existing segments for reading only (e.g. from a tool while the server is running).
+    public static SegmentedLog openReadOnly(Path dir) throws IOException {
+        return new SegmentedLog(dir, 0, 0, 0, true);
+    }
+
+    private SegmentedLog(Path dir, int segmentBytes, long retentionBytes, long retentionMillis,
+                         boolean readOnly) throws IOException {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.retentionBytes = retentionBytes;
+        this.retentionMillis = retentionMillis;
+        this.readOnly = readOnly;
+        Files.createDirectories(dir);
+
+        List<Long> bases = new ArrayList<>();
+        try (Stream<Path> files = Files.list(dir)) {
+            files.map(p -> p.getFileName().toString())
+                 .filter(n -> n.endsWith(".log"))
+                 .forEach(n -> bases.add(Long.parseLong(n.substring(0, n.length() - 4))));
+        }
+        bases.sort(null);
+        for (int i = 0; i < bases.size(); i++) {
+            // the newest segment is reopened for appending
+            segments.add(new Segment(bases.get(i), !readOnly && i == bases.size() - 1));
+        }
+        if (readOnly) return;
+        if (segments.isEmpty()) segments.add(new Segment(0, true));
+        active = segments.get(segments.size() - 1);
+        applyRetention();
+    }
+
+    // Append one message; returns its global offset. Writer thread only.
+    public long append(Message m, long timestampMillis) throws IOException {
+        if (readOnly) throw new IOException("log opened read-only");
+        byte[] sender = utf8(m.getSender());
+        byte[] recipient = utf8(m.getRecipient());
+        byte[] content = m.getContentUtf8();
+        byte[] room = utf8(m.getRoom());
+        int length = 4 + 8 + 1 + strLen(sender) + strLen(recipient) + strLen(content)
+                + (room != null ? strLen(room) : 0);
+        if (length > MAX_RECORD) throw new IOException("record too large: " + length);
+
+        if (active.position + length + 4 > segmentBytes) roll();
+        Segment seg = active;
+        int pos = seg.position;
+        MappedByteBuffer buf = seg.map;
+        buf.position(pos + 4);
+        buf.putLong(timestampMillis);
+        buf.put((byte) (m.getType().ordinal() | (room != null ? ROOM_FLAG : 0)));
+        putStr(buf, sender);
+        putStr(buf, recipient);
+        putStr(buf, content);
+        if (room != null) putStr(buf, room);
+        buf.putInt(pos, length); // length last: a torn record reads as end-of-data
+
+        if (pos == 0 || pos - seg.lastIndexedPosition >= INDEX_INTERVAL) {
+            seg.addIndex(timestampMillis, pos);
+        }
+        if (seg.firstTimestamp == 0) seg.firstTimestamp = timestampMillis;
+        seg.lastTimestamp = timestampMillis;
+        seg.position = pos + length; // publish
+        return seg.base + pos;
+    }
+
+    // Force appended data to disk (only needed for fsync durability).
+    public void force() {
+        Segment seg = active;
+        if (seg == null) return;
+        try {
+            int from = seg.forcedPosition;
+            int to = seg.position;
+            if (to > from) {
+                seg.map.force(from, to - from);
+                seg.forcedPosition = to;
+            }
+            seg.indexChannel.force(false);
+        } catch (IOException e) {
+            System.err.println("Segment log error: " + e.getMessage());
+        }
+    }
+
+    // Visit records with fromMillis <= timestamp <= toMillis, oldest first.
+    public void read(long fromMillis, long toMillis, Visitor visitor) throws IOException {
+        for (Segment seg : segments) {
+            if (seg.position == 0 || seg.lastTimestamp < fromMillis) continue;
+            if (seg.firstTimestamp > toMillis) break;
+            long pos = seg.floorPosition(fromMillis);
+            while (pos < seg.position) {
+                Record r = seg.readRecord(pos);
+                if (r == null) break;
+                if (r.timestampMillis > toMillis) return;
+                if (r.timestampMillis >= fromMillis && !visitor.visit(seg.base + pos, r.timestampMillis, r.message)) {
+                    return;
+                }
+                pos += r.length;
+            }
+        }
+    }
+
+    // Visit every record at or after a global offset (a record boundary), oldest first.
+    public void readFrom(long offset, Visitor visitor) throws IOException {
+        for (Segment seg : segments) {
+            if (seg.base + seg.position <= offset) continue;
+            long pos = Math.max(0, offset - seg.base);
+            while (pos < seg.position) {
+                Record r = seg.readRecord(pos);
+                if (r == null) break;
+                if (!visitor.visit(seg.base + pos, r.timestampMillis, r.message)) return;
+                pos += r.length;
+            }
+        }
+    }
+
+    // Up to max records stored before a global offset that pass the filter, oldest first. Walks
+    // the sparse index backwards one chunk at a time, so it reads little more than it returns.
+    public List<Message> readBefore(long beforeOffset, int max, Predicate<Message> filter) throws IOException {
+        ArrayDeque<Message> result = new ArrayDeque<>();
+        for (int i = segments.size() - 1; i >= 0 && result.size() < max; i--) {
+            Segment seg = segments.get(i);
+            if (seg.position == 0 || seg.base >= beforeOffset) continue;
+            int n = seg.indexSize;
+            int[] ps = seg.indexPositions;
+            long end = Math.min(seg.position, beforeOffset - seg.base);
+            for (int j = n - 1; j >= 0 && result.size() < max; j--) {
+                long start = ps[j];
+                if (start < end) {
+                    List<Message> chunk = new ArrayList<>();
+                    for (long pos = start; pos < end; ) {
+                        Record r = seg.readRecord(pos);
+                        if (r == null) break;
+                        if (filter.test(r.message)) chunk.add(r.message);
+                        pos += r.length;
+                    }
+                    for (int k = chunk.size() - 1; k >= 0 && result.size() < max; k--) result.addFirst(chunk.get(k));
+                    end = start;
+                }
+            }
+        }
+        return new ArrayList<>(result);
+    }
+
+    // Read the record stored at a global offset, or null if it has been deleted by retention.
+    public Message readAt(long offset) throws IOException {
+        for (int i = segments.size() - 1; i >= 0; i--) {
+            Segment seg = segments.get(i);
+            if (offset >= seg.base) {
+                if (offset - seg.base >= seg.position) return null;
+                Record r = seg.readRecord(offset - seg.base);
+                return r == null ? null : r.message;
+            }
+        }
+        return null;
+    }
+
+    // Offset of the oldest record retention has kept.
+    public long startOffset() {
+        return segments.isEmpty() ? 0 : segments.get(0).base;
+    }
+
+    // Global offset the next record will get.
+    public long endOffset() {
+        if (segments.isEmpty()) return 0;
+        Segment seg = segments.get(segments.size() - 1);
+        return seg.base + seg.position;
+    }
+
+    @Override
+    public void close() {
+        for (Segment seg : segments) seg.close();
+    }
+
+    // The next segment is created first: if that fails (disk full, mmap), the old one stays
+    // active and writable and the next append tries again.
+    private void roll() throws IOException {
+        Segment old = active;
+        Segment next = new Segment(old.base + old.position, true);
+        segments.add(next);
+        active = next;
+        try {
+            old.sealAndTruncate();
+        } catch (IOException e) {
+            System.err.println("Segment log: could not seal " + old.logPath.getFileName() + ": " + e.getMessage());
+        }
+        applyRetention();
+    }
+
+    // Writer thread, now and then: age retention for a log that is not rolling. An active
+    // segment whose newest record has expired is rolled, so it can go as well.
+    public void retain() throws IOException {
+        if (readOnly) return;
+        if (retentionMillis > 0 && active.position > 0
+                && active.lastTimestamp < System.currentTimeMillis() - retentionMillis) {
+            roll();
+        } else {
+            applyRetention();
+        }
+    }
+
+    // Delete the oldest segments beyond the size or age limit (never the active one).
+    public void applyRetention() {
+        long total = 0;
+        for (Segment seg : segments) total += seg.position;
+        long cutoff = System.currentTimeMillis() - retentionMillis;
+        while (segments.size() > 1) {
+            Segment oldest = segments.get(0);
+            boolean tooBig = retentionBytes > 0 && total > retentionBytes;
+            boolean tooOld = retentionMillis > 0 && oldest.lastTimestamp < cutoff;
+            if (!tooBig && !tooOld) break;
+            segments.remove(0);
+            total -= oldest.position;
+            oldest.delete();
+        }
+    }
+
+    private static byte[] utf8(String s) {
+        return s == null ? null : s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static int strLen(byte[] b) {
+        return 4 + (b == null ? 0 : b.length);
+    }
+
+    private static void putStr(ByteBuffer buf, byte[] b) {
+        if (b == null) {
+            buf.putInt(-1);
+        } else {
+            buf.putInt(b.length);
+            buf.put(b);
+        }
+    }
+
+    private static String getStr(ByteBuffer buf) {
+        int len = buf.getInt();
+        if (len < 0) return null;
+        String s = new String(buf.array(), buf.position(), len, StandardCharsets.UTF_8);
+        buf.position(buf.position() + len);
+        return s;
+    }
+
+    private static byte[] getBytes(ByteBuffer buf) {
+        int len = buf.getInt();
+        if (len < 0) return null;
+        byte[] b = new byte[len];
+        buf.get(b);
+        return b;
+    }
+
+    private static final class Record {
+        final int length;
+        final long timestampMillis;
+        final Message message;
+
+        Record(int length, long timestampMillis, Message message) {
+            this.length = length;
+            this.timestampMillis = timestampMillis;
+            this.message = message;
+        }
+    }
+
+    private final class Segment {
+        final long base;
+        final Path logPath;
+        final Path indexPath;
+        final FileChannel channel;
+        FileChannel indexChannel;
+        MappedByteBuffer map;           // writable mapping, active segment only
+        volatile int position;          // end of valid data
+        int forcedPosition;
+        int lastIndexedPosition;
+        volatile long firstTimestamp;
+        volatile long lastTimestamp;
+        // in-memory copy of the sparse index: timestamps[i] -> positions[i]
+        long[] indexTimestamps = new long[16];
+        int[] indexPositions = new int[16];
+        volatile int indexSize;
+
+        Segment(long base, boolean writable) throws IOException {
+            this.base = base;
+            String name = String.format("%020d", base);
+            this.logPath = dir.resolve(name + ".log");
+            this.indexPath = dir.resolve(name + ".idx");
+            this.channel = FileChannel.open(logPath, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            try {
+                loadIndex();
+                recover();
+                if (writable) {
+                    map = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+                    forcedPosition = position;
+                    indexChannel = FileChannel.open(indexPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                            StandardOpenOption.APPEND);
+                }
+            } catch (IOException | RuntimeException e) {
+                close();
+                throw e;
+            }
+        }
+
+        private void loadIndex() throws IOException {
+            if (!Files.exists(indexPath)) return;
+            ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(indexPath));
+            while (buf.remaining() >= 12) {
+                long ts = buf.getLong();
+                int pos = buf.getInt();
+                putIndex(ts, pos);
+            }
+        }
+
+        // find the end of valid data by walking records from the last index entry
+        private void recover() throws IOException {
+            int pos = indexSize > 0 ? indexPositions[indexSize - 1] : 0;
+            long size = channel.size();
+            while (pos + 4 <= size) {
+                Record r = readRecord(pos);
+                if (r == null) break;
+                if (firstTimestamp == 0) firstTimestamp = r.timestampMillis;
+                lastTimestamp = r.timestampMillis;
+                pos += r.length;
+            }
+            position = pos;
+            lastIndexedPosition = indexSize > 0 ? indexPositions[indexSize - 1] : 0;
+            if (indexSize > 0) firstTimestamp = indexTimestamps[0];
+        }
+
+        void addIndex(long ts, int pos) throws IOException {
+            putIndex(ts, pos);
+            lastIndexedPosition = pos;
+            ByteBuffer entry = ByteBuffer.allocate(12).putLong(ts).putInt(pos);
+            entry.flip();
+            while (entry.hasRemaining()) indexChannel.write(entry);
+        }
+
+        private void putIndex(long ts, int pos) {
+            int n = indexSize;
+            if (n == indexTimestamps.length) {
+                long[] t = Arrays.copyOf(indexTimestamps, n * 2);
+                int[] p = Arrays.copyOf(indexPositions, n * 2);
+                indexTimestamps = t;
+                indexPositions = p;
+            }
+            indexTimestamps[n] = ts;
+            indexPositions[n] = pos;
+            indexSize = n + 1;
+        }
+
+        // position of the last index entry at or before the given time
+        long floorPosition(long millis) {
+            int n = indexSize; // read before the arrays, which the writer swaps before publishing a new size
+            long[] ts = indexTimestamps;
+            int[] ps = indexPositions;
+            int lo = 0, hi = n - 1, found = 0;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if (ts[mid] <= millis) {
+                    found = mid;
+                    lo = mid + 1;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            return n == 0 ? 0 : ps[found];
+        }
+
+        Record readRecord(long pos) throws IOException {
+            ByteBuffer lenBuf = ByteBuffer.allocate(4);
+            if (channel.read(lenBuf, pos) < 4) return null;
+            int length = lenBuf.getInt(0);
+            if (length <= 0 || length > MAX_RECORD) return null;
+            ByteBuffer buf = ByteBuffer.allocate(length - 4);
+            while (buf.hasRemaining()) {
+                if (channel.read(buf, pos + 4 + buf.position()) < 0) return null;
+            }
+            buf.flip();
+            long ts = buf.getLong();
+            int typeByte = buf.get() & 0xFF;
+            int typeOrdinal = typeByte & ~ROOM_FLAG;
+            MessageType[] types = MessageType.values();
+            MessageType type = typeOrdinal >= 0 && typeOrdinal < types.length ? types[typeOrdinal] : MessageType.SYSTEM;
+            String sender = getStr(buf);
+            String recipient = getStr(buf);
+            byte[] content = getBytes(buf);
+            String room = (typeByte & ROOM_FLAG) != 0 ? getStr(buf) : null;
+            Message m = new Message(sender, recipient, room, content, type, ts);
+            return new Record(length, ts, m);
+        }
+
+        // Stop writing to this segment and give back the unused pre-sized tail.
+        void sealAndTruncate() throws IOException {
+            map.force();
+            map = null;
+            indexChannel.close();
+            indexChannel = null;
+            channel.truncate(position);
+        }
+
+        void delete() {
+            close();
+            try { Files.deleteIfExists(logPath); } catch (IOException ignored) {}
+            try { Files.deleteIfExists(indexPath); } catch (IOException ignored) {}
+        }
+
+        void close() {
+            try { if (map != null) map.force(); } catch (Exception ignored) {}
+            try { if (indexChannel != null) indexChannel.close(); } catch (IOException ignored) {}
+            try { channel.close(); } catch (IOException ignored) {}
+        }
+    }
+
+    // Dump a time range: java SegmentedLog <dir> "yyyy-MM-dd HH:mm:ss" "yyyy-MM-dd HH:mm:ss"
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3) {
+            System.out.println("Usage: java SegmentedLog <dir> <from> <to>");
+            return;
+        }
+        long from = Utils.parseTimestamp(args[1]);
+        long to = Utils.parseTimestamp(args[2]);
+        try (SegmentedLog log = SegmentedLog.openReadOnly(Paths.get(args[0]))) {
+            log.read(from, to, (offset, ts, m) -> {
+                String to2 = m.getRecipient() != null ? " -> " + m.getRecipient()
+                        : m.getRoom() != null ? " -> #" + m.getRoom() : "";
+                System.out.println("@" + offset + " [" + m.getTimestamp() + "] " + m.getType() + " "
+                        + m.getSender() + to2 + ": " + m.getContent());
+                return true;
+            });
+        }
+    }
+}
@@ -0,0 +1,290 @@
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+// Startup options for ChatServer.
+// Usage: java ChatServer [port] [--key=value ...]   (flags without a value mean "true")
+public class ServerConfig {
+    private final Map<String, String> options = new HashMap<>();
+    private int port = 12345;
+    private String nodeId;   // resolved once: the default may be random
+
+    public static ServerConfig fromArgs(String[] args) {
+        ServerConfig config = new ServerConfig();
+        for (String arg : args) {
+            if (arg.startsWith("--")) {
+                String opt = arg.substring(2);
+                int eq = opt.indexOf('=');
+                if (eq >= 0) {
+                    config.options.put(opt.substring(0, eq), opt.substring(eq + 1));
+                } else {
+                    config.options.put(opt, "true");
+                }
+            } else {
+                try { config.port = Integer.parseInt(arg); } catch (NumberFormatException ignored) {}
+            }
+        }
+        return config;
+    }
+
+    public ServerConfig set(String key, String value) {
+        options.put(key, value);
+        return this;
+    }
+
+    public int getPort() { return port; }
+
+    // Throws IllegalArgumentException naming the first option that cannot be used, so a typo
+    // is a usage error at startup rather than a failure halfway through it.
+    public void validate() {
+        getLogDurability();
+        int fixed = HandlerExecutors.fixedThreads(getExecutorMode());
+        if (!isNio() && fixed > 0 && fixed < getMaxConnections()) {
+            // a connection keeps its thread until it closes: client N+1 would wait for one forever
+            throw new IllegalArgumentException("--executor=fixed:" + fixed + " serves at most " + fixed
+                    + " connections; set --max-connections=" + fixed + " or lower, or use more threads");
+        }
+    }
+
+    public ServerConfig setPort(int port) {
+        this.port = port;
+        return this;
+    }
+
+    // --nio : serve connections from a few selector threads instead of one thread per socket
+    public boolean isNio() { return bool("nio", false); }
+
+    // --loops=N : number of NIO event-loop threads
+    public int getEventLoops() {
+        return Math.max(1, integer("loops", Math.max(1, Runtime.getRuntime().availableProcessors() / 2)));
+    }
+
+    // --executor=platform|virtual|fixed:N : how blocking ClientHandlers are run
+    public String getExecutorMode() { return string("executor", "platform"); }
+
+    // --queue-high-water=N : per-client outbound frames before low-priority frames are dropped
+    public int getQueueHighWater() { return Math.max(1, integer("queue-high-water", 1024)); }
+
+    // --queue-limit=N : per-client outbound frames at which the client is evicted outright
+    public int getQueueLimit() { return Math.max(getQueueHighWater(), integer("queue-limit", 8192)); }
+
+    // --slow-grace-ms=N : how long a client may stay over the high-water mark before eviction
+    public long getSlowConsumerGraceMillis() { return integer("slow-grace-ms", 5000); }
+
+    // --log-file=PATH : text chat log
+    public String getLogFile() { return string("log-file", "chat_log.txt"); }
+
+    // --log-durability=none|batched|fsync : how hard the chat log writer pushes to disk
+    public ChatLog.Durability getLogDurability() {
+        String mode = string("log-durability", "batched");
+        try {
+            return ChatLog.Durability.valueOf(mode.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("--log-durability must be none, batched or fsync, not '" + mode + "'");
+        }
+    }
+
+    // --log-queue=N : lines that may wait for the chat log writer; past that, messages wait for
+    // room and bare text lines are dropped (with fsync durability they wait too)
+    public int getLogQueueEntries() { return Math.max(1, integer("log-queue", ChatLog.DEFAULT_QUEUE_ENTRIES)); }
+
+    // --log-flush-ms=N : group-commit interval for the chat log
+    public long getLogFlushMillis() { return Math.max(1, integer("log-flush-ms", 5)); }
+
+    // --log-batch-kb=N : group-commit size for the chat log
+    public int getLogBatchBytes() { return Math.max(4, integer("log-batch-kb", 64)) * 1024; }
+
+    // --segment-log=false : turn off the binary segmented message log
+    public boolean isSegmentLogEnabled() { return bool("segment-log", true); }
+
+    // --segment-dir=DIR : where segment files live
+    public String getSegmentDir() { return string("segment-dir", "chat_segments"); }
+
+    // --segment-mb=N : size of each memory-mapped segment file
+    public int getSegmentBytes() { return Math.max(2, integer("segment-mb", 64)) * 1024 * 1024; }
+
+    // --retention-mb=N / --retention-hours=N : delete old segments beyond either limit (0 = keep)
+    public long getRetentionBytes() { return integer("retention-mb", 1024) * 1024L * 1024L; }
+
+    public long getRetentionMillis() { return integer("retention-hours", 24 * 30) * 3_600_000L; }
+
+    // --mailboxes=false : private messages to offline users are refused instead of kept
+    public boolean isMailboxEnabled() { return bool("mailboxes", true); }
+
+    // --mailbox-file=PATH : append-only store for undelivered private messages
+    public String getMailboxFile() { return string("mailbox-file", "chat_mailboxes.dat"); }
+
+    // --mailbox-max=N / --mailbox-mb=N : messages kept per user / bytes kept in total
+    public int getMailboxMaxMessages() { return Math.max(1, integer("mailbox-max", 100)); }
+
+    public long getMailboxMaxBytes() { return Math.max(1, integer("mailbox-mb", 64)) * 1024L * 1024L; }
+
+    // --mailbox-ttl-hours=N : mail not picked up by then is dropped (0 = keep)
+    public long getMailboxTtlMillis() { return Math.max(0, integer("mailbox-ttl-hours", 24 * 7)) * 3_600_000L; }
+
+    // --history=N : recent broadcast frames kept in memory for replay (0 disables)
+    public int getHistoryCapacity() { return Math.max(0, integer("history", 200)); }
+
+    // --history-on-join=N : messages replayed right after USERNAME_ACCEPTED
+    public int getHistoryOnJoin() { return Math.max(0, integer("history-on-join", 20)); }
+
+    // --history-max=N : most messages a single HISTORY::<n> request may ask for
+    public int getHistoryMax() { return Math.max(0, integer("history-max", 1000)); }
+
+    // --fanout-shards=N : broadcast delivery workers; 1 (the default) delivers on the sender's
+    // thread. With more, broadcasts stay in order among themselves but may reach a client after
+    // a private or system message sent later
+    public int getFanOutShards() { return Math.max(1, integer("fanout-shards", 1)); }
+
+    // --max-connections=N, --max-handshakes=N : sockets beyond these are refused at accept
+    public int getMaxConnections() { return Math.max(1, integer("max-connections", 10000)); }
+
+    public int getMaxHandshakes() { return Math.max(1, integer("max-handshakes", 256)); }
+
+    // --max-line-bytes=N : longest text line / binary frame a client may send
+    public int getMaxLineBytes() { return Math.max(256, integer("max-line-bytes", 64 * 1024)); }
+
+    // --conn-rate=N, --conn-burst=N : inbound frames per second per connection (0 = unlimited)
+    public int getConnectionRate() { return Math.max(0, integer("conn-rate", 200)); }
+
+    public int getConnectionBurst() { return Math.max(1, integer("conn-burst", 400)); }
+
+    // --user-rate=N, --user-burst=N : chat/private/room messages per second per username
+    public int getUserRate() { return Math.max(0, integer("user-rate", 20)); }
+
+    public int getUserBurst() { return Math.max(1, integer("user-burst", 40)); }
+
+    // --idle-timeout-ms=N : PING a silent client after half of this, drop it after all of it;
+    // applies to clients that joined with the PING capability
+    public long getIdleTimeoutMillis() { return Math.max(0, integer("idle-timeout-ms", 60000)); }
+
+    // --handshake-timeout-ms=N : drop sockets that have not joined by then
+    public long getHandshakeTimeoutMillis() { return Math.max(0, integer("handshake-timeout-ms", 10000)); }
+
+    // --presence-window-ms=N : join/leave notices within N ms are sent as one (0 = each at once)
+    public long getPresenceWindowMillis() { return Math.max(0, integer("presence-window-ms", 250)); }
+
+    // --resume-grace-ms=N : how long a RESUME-capable user stays online after its connection
+    // drops, waiting to resume (0 = off)
+    public long getResumeGraceMillis() { return Math.max(0, integer("resume-grace-ms", 30000)); }
+
+    // --resume-buffer=N : frames kept per session for replay after a resume
+    public int getResumeBuffer() { return Math.max(1, integer("resume-buffer", 1024)); }
+
+    // --cluster-port=N : accept links from other nodes of a cluster (0 = off)
+    public int getClusterPort() { return Math.max(0, integer("cluster-port", 0)); }
+
+    // --peers=host:port,... : cluster ports of the other nodes to link to
+    public List<String> getPeers() {
+        List<String> peers = new ArrayList<>();
+        for (String p : string("peers", "").split(",")) {
+            if (p.trim().indexOf(':') > 0) peers.add(p.trim());
+        }
+        return peers;
+    }
+
+    public boolean isClustered() { return getClusterPort() > 0 || !getPeers().isEmpty(); }
+
+    // --cluster-bind=ADDR : address the cluster port listens on (loopback unless set: links
+    // are not authenticated, so only open them to the network the nodes share)
+    public String getClusterBind() { return string("cluster-bind", "127.0.0.1"); }
+
+    // --node-id=NAME : this node's name in the cluster, unique per node (default
+    // <hostname>:<port>, or a random id when the host has no usable name)
+    public synchronized String getNodeId() {
+        if (nodeId == null) nodeId = string("node-id", defaultNodeId());
+        return nodeId;
+    }
+
+    private String defaultNodeId() {
+        try {
+            String host = InetAddress.getLocalHost().getHostName();
+            if (!host.isEmpty() && !host.startsWith("localhost")) return host + ":" + port;
+        } catch (UnknownHostException ignored) { }
+        return UUID.randomUUID().toString();
+    }
+
+    // --multicast=GROUP:PORT : also send lobby broadcasts once to this UDP multicast group, for
+    // clients that join with MCAST (off by default)
+    public String getMulticastGroup() { return string("multicast", ""); }
+
+    public boolean isMulticast() { return getMulticastGroup().indexOf(':') > 0; }
+
+    // --multicast-if=NAME : interface to send on (default: the OS's choice; "lo" to try it on one host)
+    public String getMulticastInterface() { return string("multicast-if", ""); }
+
+    // --multicast-ttl=N : router hops a datagram may cross (1 = this LAN only)
+    public int getMulticastTtl() { return Math.max(0, Math.min(255, integer("multicast-ttl", 1))); }
+
+    // --multicast-buffer=N : recent datagrams kept to answer NACKs
+    public int getMulticastBuffer() { return Math.max(16, integer("multicast-buffer", 4096)); }
+
+    // --metrics-port=N : plaintext metrics on 127.0.0.1:N for scraping (0 = off)
+    public int getMetricsPort() { return Math.max(0, integer("metrics-port", 0)); }
+
+    public static String usage() {
+        return "Usage: java ChatServer [port] [options]\n"
+             + "  --nio              selector-based event loops instead of a thread per connection\n"
+             + "  --loops=N          number of NIO event-loop threads (default: cores / 2)\n"
+             + "  --executor=MODE    platform | virtual | fixed:N  (blocking mode only)\n"
+             + "  --queue-high-water=N  per-client queued frames before join/leave notices are dropped (1024)\n"
+             + "  --queue-limit=N       per-client queued frames that evict the client at once (8192)\n"
+             + "  --slow-grace-ms=N     time a client may stay over the high-water mark (5000)\n"
+             + "  --log-file=PATH       text chat log (chat_log.txt)\n"
+             + "  --log-durability=M    none | batched | fsync  (batched)\n"
+             + "  --log-flush-ms=N      chat log group-commit interval (5)\n"
+             + "  --log-batch-kb=N      chat log group-commit size (64)\n"
+             + "  --log-queue=N         lines waiting for the log writer before senders wait (65536)\n"
+             + "  --segment-log=false   disable the binary segmented message log\n"
+             + "  --segment-dir=DIR     segment directory (chat_segments)\n"
+             + "  --segment-mb=N        segment file size (64)\n"
+             + "  --retention-mb=N      delete oldest segments beyond this total size (1024, 0 = keep)\n"
+             + "  --retention-hours=N   delete segments older than this (720, 0 = keep)\n"
+             + "  --mailboxes=false     do not keep private messages for offline users\n"
+             + "  --mailbox-file=PATH   offline mailbox store (chat_mailboxes.dat)\n"
+             + "  --mailbox-max=N       messages kept per offline user (100), --mailbox-mb=N in total (64)\n"
+             + "  --mailbox-ttl-hours=N drop mail not picked up by then (168, 0 = keep)\n"
+             + "  --fanout-shards=N     broadcast delivery threads (1 = sender's thread, the default)\n"
+             + "  --max-connections=N   open connections before new sockets are refused (10000)\n"
+             + "  --max-handshakes=N    connected sockets that have not joined yet (256)\n"
+             + "  --max-line-bytes=N    longest line or frame a client may send (65536)\n"
+             + "  --conn-rate=N         inbound frames/s per connection, --conn-burst=N (200, 400; 0 = off)\n"
+             + "  --user-rate=N         messages/s per username, --user-burst=N (20, 40; 0 = off)\n"
+             + "  --idle-timeout-ms=N   PING silent PING-capable clients after half, drop them after all (60000, 0 = off)\n"
+             + "  --handshake-timeout-ms=N  disconnect sockets that have not joined by then (10000, 0 = off)\n"
+             + "  --presence-window-ms=N coalesce join/leave notices over this window (250, 0 = off)\n"
+             + "  --history=N           recent messages kept in memory for replay (200)\n"
+             + "  --history-on-join=N   messages replayed to a user when they join (20)\n"
+             + "  --history-max=N       largest HISTORY::<n> request served, older ones from disk (1000)\n"
+             + "  --resume-grace-ms=N   keep a dropped RESUME session online this long (30000, 0 = off)\n"
+             + "  --resume-buffer=N     frames kept per session for replay on resume (1024)\n"
+             + "  --cluster-port=N      accept links from other cluster nodes on this port (0 = off)\n"
+             + "  --peers=H:P,...       cluster ports of the other nodes to link to\n"
+             + "  --cluster-bind=ADDR   address the cluster port listens on (127.0.0.1)\n"
+             + "  --node-id=NAME        unique name of this node in the cluster (<hostname>:<port>)\n"
+             + "  --multicast=G:P       also multicast lobby broadcasts to group G, port P, for MCAST clients\n"
+             + "  --multicast-if=NAME   interface to multicast on (OS default; lo for one host)\n"
+             + "  --multicast-ttl=N     multicast hops (1), --multicast-buffer=N datagrams kept for NACKs (4096)\n"
+             + "  --metrics-port=N      plaintext metrics on 127.0.0.1:N (0 = off)";
+    }
+
+    private String string(String key, String def) {
+        String v = options.get(key);
+        return v == null ? def : v;
+    }
+
+    private boolean bool(String key, boolean def) {
+        String v = options.get(key);
+        return v == null ? def : Boolean.parseBoolean(v);
+    }
+
+    private int integer(String key, int def) {
+        String v = options.get(key);
+        if (v == null) return def;
+        try { return Integer.parseInt(v.trim()); } catch (NumberFormatException e) { return def; }
+    }
+}
@@ -0,0 +1,172 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+// Server-wide counters and latency histograms. Hot paths only touch striped LongAdders and
+// LatencyHistogram buckets, so recording never takes a lock. render() produces the text for the
+// /stats admin command and the optional scrape endpoint (Prometheus text format).
+public class ServerMetrics {
+    private static final MessageType[] TYPES = MessageType.values();
+    private static final String[] QUANTILES = {"0.5", "0.99", "0.999"};
+
+    // inbound, per MessageType (COMMAND covers LIST/HISTORY/EXIT and other protocol lines)
+    final LongAdder[] messagesIn = adders(TYPES.length);
+    // outbound frames handed to recipients, per MessageType of the message they carry
+    final LongAdder[] messagesOut = adders(TYPES.length);
+    final LongAdder bytesIn = new LongAdder();
+    final LongAdder bytesOut = new LongAdder();
+    final LongAdder connectionsOpened = new LongAdder();
+    final LongAdder connectionsClosed = new LongAdder();
+    final LongAdder joins = new LongAdder();
+    final LongAdder joinsRejected = new LongAdder();
+    // sockets refused at accept (connection or handshake cap), inbound frames dropped by a rate limit
+    final LongAdder connectionsRejected = new LongAdder();
+    final LongAdder rateLimited = new LongAdder();
+    // connections dropped by the idle or handshake timeout
+    final LongAdder idleReaped = new LongAdder();
+    // private messages kept for an offline recipient
+    final LongAdder mailDeposited = new LongAdder();
+    // sessions picked up again by RESUME, and parked ones that expired instead
+    final LongAdder sessionsResumed = new LongAdder();
+    final LongAdder sessionsExpired = new LongAdder();
+    // broadcast datagrams sent to the multicast group, and NACKs answered with repairs
+    final LongAdder multicastSent = new LongAdder();
+    final LongAdder multicastRepairs = new LongAdder();
+
+    // time to hand one broadcast to every recipient's queue (to every shard queue when sharded)
+    final LatencyHistogram fanOut = new LatencyHistogram();
+    // time to process one inbound frame (parse + dispatch)
+    final LatencyHistogram frameHandling = new LatencyHistogram();
+
+    private final long startMillis = System.currentTimeMillis();
+    private volatile ServerSocket endpoint;
+
+    private static LongAdder[] adders(int n) {
+        LongAdder[] a = new LongAdder[n];
+        for (int i = 0; i < n; i++) a[i] = new LongAdder();
+        return a;
+    }
+
+    void messageIn(MessageType type) {
+        messagesIn[type.ordinal()].increment();
+    }
+
+    void messagesOut(MessageType type, int recipients) {
+        messagesOut[type.ordinal()].add(recipients);
+    }
+
+    // Everything, as "name{labels} value" lines. Gauges (clients, queue depths) are read from
+    // the server at call time.
+    public String render(ChatServer server) {
+        StringBuilder sb = new StringBuilder();
+        line(sb, "lanchat_uptime_seconds", "", (System.currentTimeMillis() - startMillis) / 1000);
+        for (MessageType t : TYPES) {
+            line(sb, "lanchat_messages_in_total", label("type", t), messagesIn[t.ordinal()].sum());
+        }
+        for (MessageType t : TYPES) {
+            line(sb, "lanchat_messages_out_total", label("type", t), messagesOut[t.ordinal()].sum());
+        }
+        line(sb, "lanchat_bytes_in_total", "", bytesIn.sum());
+        line(sb, "lanchat_bytes_out_total", "", bytesOut.sum());
+        line(sb, "lanchat_connections_opened_total", "", connectionsOpened.sum());
+        line(sb, "lanchat_connections_closed_total", "", connectionsClosed.sum());
+        line(sb, "lanchat_joins_total", "", joins.sum());
+        line(sb, "lanchat_joins_rejected_total", "", joinsRejected.sum());
+        line(sb, "lanchat_connections_rejected_total", "", connectionsRejected.sum());
+        line(sb, "lanchat_rate_limited_total", "", rateLimited.sum());
+        line(sb, "lanchat_idle_reaped_total", "", idleReaped.sum());
+        line(sb, "lanchat_mail_deposited_total", "", mailDeposited.sum());
+        line(sb, "lanchat_sessions_resumed_total", "", sessionsResumed.sum());
+        line(sb, "lanchat_sessions_expired_total", "", sessionsExpired.sum());
+        line(sb, "lanchat_multicast_sent_total", "", multicastSent.sum());
+        line(sb, "lanchat_multicast_repairs_total", "", multicastRepairs.sum());
+        line(sb, "lanchat_evictions_total", "", server.getEvictionCount());
+        line(sb, "lanchat_clients", "", server.getClientCount());
+        line(sb, "lanchat_handshakes_pending", "", server.getPendingHandshakes());
+        line(sb, "lanchat_outbound_queued_frames", "", server.getQueuedFrames());
+        line(sb, "lanchat_outbound_queue_max", "", server.getMaxQueuedFrames());
+        summary(sb, "lanchat_fanout_seconds", fanOut);
+        summary(sb, "lanchat_frame_handling_seconds", frameHandling);
+        ChatLog log = server.getChatLog();
+        if (log != null) {
+            line(sb, "lanchat_log_lines_total", "", log.linesWritten());
+            line(sb, "lanchat_log_dropped_total", "", log.linesDropped());
+            summary(sb, "lanchat_log_flush_seconds", log.flushLatency());
+        }
+        return sb.toString();
+    }
+
+    private static String label(String name, MessageType type) {
+        return "{" + name + "=\"" + type.name().toLowerCase(Locale.ROOT) + "\"}";
+    }
+
+    private static void line(StringBuilder sb, String name, String labels, long value) {
+        sb.append(name).append(labels).append(' ').append(value).append('\n');
+    }
+
+    private static void summary(StringBuilder sb, String name, LatencyHistogram h) {
+        for (String q : QUANTILES) {
+            sb.append(name).append("{quantile=\"").append(q).append("\"} ")
+              .append(seconds(h.percentileNanos(Double.parseDouble(q) * 100))).append('\n');
+        }
+        sb.append(name).append("_max ").append(seconds(h.maxNanos())).append('\n');
+        sb.append(name).append("_sum ").append(seconds(h.sumNanos())).append('\n');
+        sb.append(name).append("_count ").append(h.count()).append('\n');
+    }
+
+    private static String seconds(long nanos) {
+        return String.format(Locale.ROOT, "%.9f", nanos / 1e9);
+    }
+
+    // Plaintext scrape endpoint on 127.0.0.1:port. Every request gets the full render(); one
+    // request at a time on a daemon thread, which is plenty for a scraper.
+    void startEndpoint(ChatServer server, int port) throws IOException {
+        ServerSocket ss = new ServerSocket(port, 16, InetAddress.getLoopbackAddress());
+        endpoint = ss;
+        Thread t = new Thread(() -> {
+            while (!ss.isClosed()) {
+                try (Socket s = ss.accept()) {
+                    s.setSoTimeout(2000);
+                    readRequestHead(s.getInputStream());
+                    byte[] body = render(server).getBytes(StandardCharsets.UTF_8);
+                    OutputStream out = s.getOutputStream();
+                    out.write(("HTTP/1.0 200 OK\r\nContent-Type: text/plain; version=0.0.4\r\nContent-Length: "
+                            + body.length + "\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+                    out.write(body);
+                    out.flush();
+                } catch (IOException e) {
+                    // scraper went away or endpoint closed
+                }
+            }
+        }, "MetricsEndpoint");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    void stopEndpoint() {
+        ServerSocket ss = endpoint;
+        if (ss != null) {
+            try { ss.close(); } catch (IOException ignored) {}
+        }
+    }
+
+    // Skip the request line and headers (up to the blank line); the path is ignored.
+    private static void readRequestHead(InputStream in) throws IOException {
+        int lineLength = 0;
+        int b;
+        while ((b = in.read()) >= 0) {
+            if (b == '\n') {
+                if (lineLength == 0) return;
+                lineLength = 0;
+            } else if (b != '\r') {
+                lineLength++;
+            }
+        }
+    }
+}
@@ -0,0 +1,103 @@
+import java.util.ArrayDeque;
+import java.util.List;
+
+// A resumable login (JOIN capability RESUME). Every frame for the user gets a sequence number,
+// sent just before it as SEQ::<n>, and the last `capacity` frames are kept (connection-level
+// frames - PING/PONG, rate-limit notices - bypass the session and are neither); a client whose
+// connection dropped reconnects with RESUME::<token>::<last n it saw> and is sent exactly the
+// frames it missed. The handler that joined stays registered everywhere (clients, rooms,
+// roster subscribers, fan-out shards) as the session's endpoint, and everything sent to it is
+// routed through here to whichever connection owns the session now, or only kept while none
+// does, so a resume changes no server-wide state and nobody sees the user leave and rejoin.
+final class Session {
+    final String token;
+    final ClientHandler endpoint;
+    private final int capacity;
+    private final ArrayDeque<Frame> frames = new ArrayDeque<>(); // sequence firstSeq .. nextSeq-1
+    private long firstSeq = 1;
+    private long nextSeq = 1;
+    private ClientHandler owner;     // null while parked
+    private ClientHandler last;      // the latest owner; its rooms are what the user is in
+    private long parkedGeneration;   // bumped on every park, so a stale expiry does nothing
+    private boolean ended;
+
+    Session(String token, ClientHandler endpoint, int capacity) {
+        this.token = token;
+        this.endpoint = endpoint;
+        this.capacity = Math.max(1, capacity);
+        this.owner = endpoint;
+        this.last = endpoint;
+    }
+
+    synchronized ClientHandler owner() { return owner; }
+
+    synchronized ClientHandler last() { return last; }
+
+    synchronized void deliver(Frame f) {
+        if (f.isBatch()) {
+            for (Frame part : f.parts()) deliver(part);
+            return;
+        }
+        if (ended) return;
+        ClientHandler o = owner;
+        if (o != null && o.isActive() && o.admit(f)) {
+            o.enqueue(sequenced(record(f), f));
+            return;
+        }
+        if (f.isDroppable()) return; // join/leave noise is not worth replaying
+        record(f); // parked, closing, or just evicted as too slow: kept for the resume
+    }
+
+    // The owner's connection is gone. Returns the park generation, or -1 if h is not the owner.
+    synchronized long park(ClientHandler h) {
+        if (ended || owner != h) return -1;
+        owner = null;
+        return ++parkedGeneration;
+    }
+
+    // Hand the session to a new connection: reply goes first, then every frame after lastSeq.
+    // A connection still holding it (the server had not noticed it die) is closed. False if the
+    // session has ended or the frames after lastSeq are no longer all kept.
+    synchronized boolean resume(ClientHandler fresh, long lastSeq, Frame reply) {
+        if (ended || lastSeq < firstSeq - 1 || lastSeq >= nextSeq) return false;
+        ClientHandler previous = owner;
+        owner = fresh;
+        last = fresh;
+        fresh.enqueue(reply);
+        long seq = firstSeq;
+        for (Frame f : frames) {
+            if (seq > lastSeq) fresh.enqueue(sequenced(seq, f));
+            seq++;
+        }
+        if (previous != null) previous.abortReplaced();
+        return true;
+    }
+
+    // Grace period over: ends the session if it is still parked since that park.
+    synchronized boolean expire(long generation) {
+        if (ended || owner != null || generation != parkedGeneration) return false;
+        ended = true;
+        return true;
+    }
+
+    // The owner h left for good (EXIT, kick, shutdown); h == null ends a parked session.
+    synchronized boolean end(ClientHandler h) {
+        if (ended || owner != h) return false;
+        ended = true;
+        owner = null;
+        return true;
+    }
+
+    private long record(Frame f) {
+        frames.add(f);
+        if (frames.size() > capacity) {
+            frames.poll();
+            firstSeq++;
+        }
+        return nextSeq++;
+    }
+
+    private static Frame sequenced(long seq, Frame f) {
+        return Frame.concat(List.of(Frame.of("SEQ::" + seq), f));
+    }
+}
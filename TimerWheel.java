@@ -0,0 +1,102 @@
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongConsumer;
+
+// Hashed timer wheel: one thread, a ring of slots each covering one tick. A timeout lands in
+// the slot its deadline hashes to, with the number of full turns still to wait; each tick only
+// looks at one slot. Scheduling and cancelling are O(1) from any thread, and tens of thousands
+// of pending timeouts cost nothing until their slot comes round. Precision is one tick.
+public final class TimerWheel {
+    private final long tickNanos;
+    private final ArrayDeque<Timeout>[] slots;
+    private final ConcurrentLinkedQueue<Timeout> incoming = new ConcurrentLinkedQueue<>();
+    private final Thread worker;
+    private final long startNanos = System.nanoTime();
+    private long tick;   // worker thread only
+    private volatile boolean running = true;
+
+    public final class Timeout {
+        private final LongConsumer task;
+        private final long deadline;
+        private long rounds;
+        private volatile boolean cancelled;
+
+        private Timeout(LongConsumer task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        public void cancel() {
+            cancelled = true;
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public TimerWheel(long tickMillis, int slotCount, String threadName) {
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMillis));
+        this.slots = new ArrayDeque[slotCount];
+        for (int i = 0; i < slotCount; i++) slots[i] = new ArrayDeque<>();
+        this.worker = new Thread(this::run, threadName);
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    // Run task(nowNanos) on the wheel thread after about delayNanos. Tasks must not block.
+    public Timeout schedule(LongConsumer task, long delayNanos) {
+        Timeout t = new Timeout(task, System.nanoTime() + Math.max(0, delayNanos));
+        incoming.add(t);
+        return t;
+    }
+
+    public void stop() {
+        running = false;
+        worker.interrupt();
+    }
+
+    private void run() {
+        while (running) {
+            long tickEnd = startNanos + (tick + 1) * tickNanos;
+            long sleep = tickEnd - System.nanoTime();
+            if (sleep > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleep);
+                } catch (InterruptedException e) {
+                    if (!running) return;
+                }
+                continue;
+            }
+            transferIncoming();
+            expire(slots[(int) (tick % slots.length)], System.nanoTime());
+            tick++;
+        }
+    }
+
+    // Deadlines already in the past go into the current slot and fire this tick.
+    private void transferIncoming() {
+        Timeout t;
+        while ((t = incoming.poll()) != null) {
+            if (t.cancelled) continue;
+            long due = Math.max(tick, (t.deadline - startNanos + tickNanos - 1) / tickNanos);
+            t.rounds = (due - tick) / slots.length;
+            slots[(int) (due % slots.length)].add(t);
+        }
+    }
+
+    private void expire(ArrayDeque<Timeout> slot, long now) {
+        for (int n = slot.size(); n > 0; n--) {
+            Timeout t = slot.poll();
+            if (t.cancelled) continue;
+            if (t.rounds > 0) {
+                t.rounds--;
+                slot.add(t);
+                continue;
+            }
+            try {
+                t.task.accept(now);
+            } catch (RuntimeException e) {
+                System.err.println("Timer task failed: " + e);
+            }
+        }
+    }
+}
@@ -0,0 +1,36 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+// Lock-free token bucket, kept as a single "theoretical arrival time" (GCRA): the instant at
+// which the bucket would be full again. Taking a token pushes it one interval further; a take
+// that would push it more than burst intervals past now is refused. One CAS per check, no
+// allocation, and safe to share between threads (a username's bucket outlives its connections).
+public final class TokenBucket {
+    private final long intervalNanos;
+    private final long burstNanos;
+    private final AtomicLong fullAt;
+
+    // ratePerSecond tokens per second, at most burst taken back to back
+    public TokenBucket(double ratePerSecond, int burst) {
+        this.intervalNanos = Math.max(1, (long) (1_000_000_000L / ratePerSecond));
+        this.burstNanos = intervalNanos * Math.max(1, burst);
+        this.fullAt = new AtomicLong(System.nanoTime());
+    }
+
+    public boolean tryAcquire() {
+        return tryAcquire(System.nanoTime());
+    }
+
+    public boolean tryAcquire(long now) {
+        while (true) {
+            long current = fullAt.get();
+            long next = Math.max(current, now) + intervalNanos;
+            if (next - now > burstNanos) return false;
+            if (fullAt.compareAndSet(current, next)) return true;
+        }
+    }
+
+    // Full again: dropping the bucket and starting a new one would change nothing.
+    public boolean isIdle(long now) {
+        return fullAt.get() - now <= 0;
+    }
+}
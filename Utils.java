@@ -1,11 +1,63 @@
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class Utils {
     private static final DateTimeFormatter fmt = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
 
+    // Timestamps have second resolution, so the formatted form of the current second is cached
+    // and only re-formatted when the clock moves to a new second (the thread that wins the CAS
+    // publishes it). Older timestamps, e.g. history read from disk, are formatted on demand.
+    private static final AtomicReference<Stamp> lastStamp = new AtomicReference<>(new Stamp(Long.MIN_VALUE, ""));
+
+    // Raw clock for binary encoding and Message timestamps.
+    public static long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
     public static String timestamp() {
-        return LocalDateTime.now().format(fmt);
+        return formatTimestamp(System.currentTimeMillis());
+    }
+
+    public static String formatTimestamp(long epochMillis) {
+        return stamp(epochMillis).text;
+    }
+
+    // US-ASCII bytes of formatTimestamp(epochMillis); shared, callers must not modify them.
+    public static byte[] timestampBytes(long epochMillis) {
+        return stamp(epochMillis).bytes;
+    }
+
+    private static Stamp stamp(long epochMillis) {
+        long second = Math.floorDiv(epochMillis, 1000L);
+        Stamp cur = lastStamp.get();
+        if (cur.second == second) return cur;
+        Stamp s = new Stamp(second,
+                LocalDateTime.ofInstant(Instant.ofEpochMilli(epochMillis), ZoneId.systemDefault()).format(fmt));
+        // only move forward: a late caller with an older time must not evict the current second
+        if (second > cur.second) lastStamp.compareAndSet(cur, s);
+        return s;
+    }
+
+    // Inverse of timestamp(): "yyyy-MM-dd HH:mm:ss" in the local zone -> epoch millis
+    public static long parseTimestamp(String ts) {
+        return LocalDateTime.parse(ts.trim(), fmt).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    private static final class Stamp {
+        final long second;
+        final String text;
+        final byte[] bytes;
+
+        Stamp(long second, String text) {
+            this.second = second;
+            this.text = text;
+            this.bytes = text.getBytes(StandardCharsets.US_ASCII);
+        }
     }
 
     // Build server -> client protocol strings
@@ -19,6 +71,53 @@ public class Utils {
         return "PRIVATE::" + m.getTimestamp() + "::" + m.getSender() + "::" + m.getContent();
     }
 
+    public static String buildRoomMessage(Message m) {
+        // Format: ROOM::<room>::<timestamp>::<sender>::<content>
+        return "ROOM::" + m.getRoom() + "::" + m.getTimestamp() + "::" + m.getSender() + "::" + m.getContent();
+    }
+
+    public static String buildUserDelta(long version, char change, String username) {
+        // Format: USERDELTA::<version>::+user (joined) or -user (left)
+        return "USERDELTA::" + version + "::" + change + username;
+    }
+
+    public static String buildSearchHit(Message m) {
+        // Format: SEARCHHIT::<timestamp>::<sender>::<where>::<content>, where is * (everyone),
+        // @recipient or #room
+        String where = m.getRecipient() != null ? "@" + m.getRecipient() : m.getRoom() != null ? "#" + m.getRoom() : "*";
+        return "SEARCHHIT::" + m.getTimestamp() + "::" + m.getSender() + "::" + where + "::" + m.getContent();
+    }
+
+    public static String buildRoomList(List<String> rooms) {
+        return "ROOMLIST::" + String.join(",", rooms);
+    }
+
+    public static final int MAX_USERNAME = 32;
+    public static final String USERNAME_RULES = "Username must be at most " + MAX_USERNAME
+            + " characters, without control characters or '::', and not start or end with ':'";
+
+    // A name is a protocol field: it must not contain the "::" separator, nor start or end with
+    // ':' and form one with a neighbouring separator (PMSG::bob:::hi). It is also repeated in
+    // every join notice, user list and stored record, hence the length bound.
+    public static boolean isValidUsername(String name) {
+        if (name.isEmpty() || name.length() > MAX_USERNAME) return false;
+        for (int i = 0; i < name.length(); i++) {
+            if (Character.isISOControl(name.charAt(i))) return false;
+        }
+        return !name.contains("::") && !name.startsWith(":") && !name.endsWith(":");
+    }
+
+    public static boolean isValidRoomName(String name) {
+        if (name.isEmpty() || name.length() > 32) return false;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (!(c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c == '_' || c == '-')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     public static String buildSystem(String content) {
         return "SYSTEM::" + content;
     }
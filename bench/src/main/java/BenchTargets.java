@@ -0,0 +1,207 @@
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicLong;
+
+import lanchat.bench.Targets;
+
+// Default-package side of the JMH benchmarks (see lanchat.bench.Targets).
+public final class BenchTargets {
+    private BenchTargets() {}
+
+    public static final class CodecTarget implements Targets.Codec {
+        private static final byte[] MSG = "MSG::".getBytes(StandardCharsets.US_ASCII);
+        private static final DateTimeFormatter LEGACY_FMT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+        private final FrameDecoder decoder = new FrameDecoder(1024, 64 * 1024);
+
+        @Override
+        public byte[] encodeText(String content) {
+            return Frame.message(message(content), 0, false).bytes(false);
+        }
+
+        @Override
+        public byte[] encodeBinary(String content) {
+            return Frame.message(message(content), 0, false).bytes(true);
+        }
+
+        private static Message message(String content) {
+            return new Message("alice", null, content, MessageType.CHAT, Utils.currentTimeMillis());
+        }
+
+        @Override
+        public byte[] wire(int lines, String content) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] line = ("MSG::" + content + "\n").getBytes(StandardCharsets.UTF_8);
+            for (int i = 0; i < lines; i++) out.write(line, 0, line.length);
+            return out.toByteArray();
+        }
+
+        // ClientHandler.handleFrame's chat path
+        @Override
+        public int decode(byte[] wire) throws IOException {
+            ByteArrayInputStream in = new ByteArrayInputStream(wire);
+            int n = 0;
+            while (decoder.readFrom(in) > 0) {
+                while (decoder.next()) {
+                    if (decoder.consume(MSG)) {
+                        Message m = new Message("alice", null, decoder.readRemainingBytes(), MessageType.CHAT,
+                                Utils.currentTimeMillis());
+                        if (m.getType() == MessageType.CHAT) n++;
+                    }
+                }
+            }
+            return n;
+        }
+
+        // What the baseline did before byte-level dispatch: readLine through a Reader, split("::")
+        // and a String-only message carrying a freshly formatted timestamp.
+        @Override
+        public int decodeLegacy(byte[] wire) {
+            BufferedReader in = new BufferedReader(
+                    new InputStreamReader(new ByteArrayInputStream(wire), StandardCharsets.UTF_8));
+            int n = 0;
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    String[] parts = line.split("::", 2);
+                    if (parts.length == 2 && parts[0].equals("MSG")) {
+                        LegacyMessage m = new LegacyMessage("alice", null, parts[1], MessageType.CHAT,
+                                LocalDateTime.now().format(LEGACY_FMT));
+                        if (m.type == MessageType.CHAT) n++;
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return n;
+        }
+    }
+
+    // Message as it was before the byte-level path: every field a String, the timestamp
+    // formatted when the message was built.
+    private static final class LegacyMessage {
+        final String sender;
+        final String recipient;
+        final String content;
+        final MessageType type;
+        final String timestamp;
+
+        LegacyMessage(String sender, String recipient, String content, MessageType type, String timestamp) {
+            this.sender = sender;
+            this.recipient = recipient;
+            this.content = content;
+            this.type = type;
+            this.timestamp = timestamp;
+        }
+    }
+
+    public static final class ServerTarget implements Targets.Server {
+        private ChatServer server;
+        private MemoryHandler placeholder;
+        private final AtomicLong bytes = new AtomicLong();
+
+        @Override
+        public void setUp(int clients, boolean binaryClients, int fanOutShards, String logDir) throws IOException {
+            Path dir = Paths.get(logDir);
+            Files.createDirectories(dir);
+            ServerConfig config = ServerConfig.fromArgs(new String[] {
+                    "--log-file=" + dir.resolve("chat_log.txt"),
+                    "--segment-dir=" + dir.resolve("segments"),
+                    "--mailbox-file=" + dir.resolve("mailboxes.dat"),
+                    "--history-on-join=0",
+                    "--fanout-shards=" + fanOutShards,
+                    "--max-connections=" + (clients + 1)});
+            server = new ChatServer(config);
+            server.openLogs();
+            placeholder = new MemoryHandler(server, bytes);
+            for (int i = 0; i < clients; i++) {
+                server.admit(); // as the accept loop would
+                MemoryHandler h = new MemoryHandler(server, bytes);
+                h.handleLine("JOIN::user" + i + (binaryClients ? "::" + BinaryProtocol.VERSION : ""));
+            }
+        }
+
+        @Override
+        public void broadcast(String content) throws InterruptedException {
+            server.broadcast(new Message("bench", null, content, MessageType.CHAT, Utils.currentTimeMillis()));
+            server.awaitFanOut();
+        }
+
+        @Override
+        public void log(String line) {
+            server.log(line);
+        }
+
+        @Override
+        public boolean addClient(String username) {
+            return server.addClient(username, placeholder);
+        }
+
+        @Override
+        public void removeClient(String username) {
+            server.removeClient(username);
+        }
+
+        @Override
+        public void tearDown() {
+            server.stopBackgroundThreads();
+            server.closeLogs();
+        }
+    }
+
+    // A connected client without a socket: frames are drained inline on the sending thread and
+    // only their sizes are recorded, so a benchmark measures the server's fan-out work.
+    static final class MemoryHandler extends ClientHandler {
+        private final AtomicLong bytes;
+
+        MemoryHandler(ChatServer server, AtomicLong bytes) {
+            super(server);
+            this.bytes = bytes;
+        }
+
+        @Override
+        protected synchronized void scheduleDrain() {
+            try {
+                Frame f;
+                while ((f = pollOutbound()) != null) writeFrame(f);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        protected void writeBytes(byte[] b) {
+            bytes.addAndGet(b.length);
+        }
+
+        @Override
+        protected void writeShared(Frame f, boolean binary) {
+            bytes.addAndGet(f.bytes(binary).length);
+        }
+
+        @Override
+        protected void abort() {
+            active = false;
+            clearOutbound();
+        }
+
+        @Override
+        public void kickAndClose() {
+            abort();
+        }
+
+        @Override
+        protected void closeTransport() {
+            clearOutbound();
+        }
+    }
+}
@@ -0,0 +1,325 @@
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+// Headless load generator: opens N loopback connections, each with its own JOIN username, drives
+// broadcasts and private messages at fixed rates and measures end-to-end delivery latency.
+//
+//   java LoadGenerator [--host=127.0.0.1] [--port=12345] [--clients=100] [--rate=1000]
+//                      [--pm-rate=0] [--duration=30] [--warmup=5] [--size=64] [--binary]
+//                      [--name=lg] [--histogram-out=FILE]
+//
+// Every message carries its intended send time (System.nanoTime(), same JVM on both ends) in
+// its content; receivers record now - sendTime into an HdrHistogram. Messages are paced against
+// the schedule, not the previous send, so a stalled server shows up as latency rather than as a
+// lower send rate (no coordinated omission).
+public class LoadGenerator {
+    private static final String MARK = "LG|";
+    private static final long HIGHEST_TRACKABLE_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    private final Map<String, String> options;
+    private final Recorder latency = new Recorder(HIGHEST_TRACKABLE_NANOS, 3);
+    private final Histogram setup = new Histogram(HIGHEST_TRACKABLE_NANOS, 3);
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder sentPrivate = new LongAdder();
+    private final LongAdder received = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final List<Connection> connections = new ArrayList<>();
+    private volatile boolean running = true;
+
+    LoadGenerator(Map<String, String> options) {
+        this.options = options;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (arg.equals("--help")) {
+                System.out.println("Usage: java LoadGenerator [--host=H] [--port=P] [--clients=N] [--rate=MSG/S]"
+                        + " [--pm-rate=MSG/S] [--duration=S] [--warmup=S] [--size=BYTES] [--binary]"
+                        + " [--name=PREFIX] [--histogram-out=FILE]");
+                return;
+            }
+            if (!arg.startsWith("--")) continue;
+            int eq = arg.indexOf('=');
+            if (eq >= 0) options.put(arg.substring(2, eq), arg.substring(eq + 1));
+            else options.put(arg.substring(2), "true");
+        }
+        new LoadGenerator(options).run();
+    }
+
+    void run() throws Exception {
+        String host = string("host", "127.0.0.1");
+        int port = integer("port", 12345);
+        int clients = Math.max(1, integer("clients", 100));
+        int rate = integer("rate", 1000);
+        int pmRate = integer("pm-rate", 0);
+        int duration = integer("duration", 30);
+        int warmup = integer("warmup", 5);
+        int size = Math.max(0, integer("size", 64));
+        boolean binary = Boolean.parseBoolean(string("binary", "false"));
+        String name = string("name", "lg");
+
+        System.out.println("Connecting " + clients + " client(s) to " + host + ":" + port
+                + (binary ? " (binary)" : "") + "...");
+        long connectStart = System.nanoTime();
+        for (int i = 0; i < clients; i++) {
+            Connection c = new Connection(name + i, binary);
+            long t0 = System.nanoTime();
+            try {
+                c.connect(host, port);
+            } catch (IOException e) {
+                System.err.println("Connection " + c.username + " failed: " + e.getMessage());
+                errors.increment();
+                continue;
+            }
+            setup.recordValue(Math.min(System.nanoTime() - t0, HIGHEST_TRACKABLE_NANOS));
+            connections.add(c);
+        }
+        long connectNanos = System.nanoTime() - connectStart;
+        if (connections.isEmpty()) {
+            System.err.println("No connections established.");
+            return;
+        }
+        for (Connection c : connections) c.startReader();
+
+        String padding = "x".repeat(size);
+        Thread broadcaster = pacer("LoadGen-broadcast", rate, (c, sendTime) -> c.sendChat(sendTime, padding));
+        Thread privates = pacer("LoadGen-private", pmRate, (c, sendTime) -> {
+            Connection to = connections.get(ThreadLocalRandom.current().nextInt(connections.size()));
+            c.sendPrivate(to.username, sendTime, padding);
+        });
+
+        Thread.sleep(TimeUnit.SECONDS.toMillis(warmup));
+        latency.reset();
+        long sentBefore = sent.sum();
+        long privateBefore = sentPrivate.sum();
+        long receivedBefore = received.sum();
+        long measureStart = System.nanoTime();
+        Thread.sleep(TimeUnit.SECONDS.toMillis(duration));
+        Histogram lat = latency.getIntervalHistogram();
+        double seconds = (System.nanoTime() - measureStart) / 1e9;
+        long sentCount = sent.sum() - sentBefore;
+        long privateCount = sentPrivate.sum() - privateBefore;
+        long receivedCount = received.sum() - receivedBefore;
+
+        running = false;
+        if (broadcaster != null) broadcaster.join();
+        if (privates != null) privates.join();
+        for (Connection c : connections) c.close();
+
+        PrintStream out = System.out;
+        out.println();
+        out.printf("Connections:  %d ok, %d failed, %.1f ms total%n", connections.size(),
+                clients - connections.size(), connectNanos / 1e6);
+        out.printf("Setup (ms):   p50 %.2f  p99 %.2f  max %.2f%n", ms(setup.getValueAtPercentile(50)),
+                ms(setup.getValueAtPercentile(99)), ms(setup.getMaxValue()));
+        out.printf("Sent:         %.0f msgs/s (%.0f broadcast, %.0f private)%n",
+                (sentCount + privateCount) / seconds, sentCount / seconds, privateCount / seconds);
+        out.printf("Delivered:    %.0f msgs/s%n", receivedCount / seconds);
+        out.printf("Received:     %.1f KB total, %.1f KB per connection (joins included)%n",
+                bytesReceived.sum() / 1024.0, bytesReceived.sum() / 1024.0 / connections.size());
+        out.printf("Latency (us): p50 %.1f  p99 %.1f  p999 %.1f  max %.1f  (%d samples)%n",
+                us(lat.getValueAtPercentile(50)), us(lat.getValueAtPercentile(99)),
+                us(lat.getValueAtPercentile(99.9)), us(lat.getMaxValue()), lat.getTotalCount());
+        out.printf("Errors:       %d%n", errors.sum());
+
+        String histogramOut = options.get("histogram-out");
+        if (histogramOut != null) {
+            try (PrintStream file = new PrintStream(new FileOutputStream(histogramOut))) {
+                lat.outputPercentileDistribution(file, 1000.0); // microseconds
+            }
+            out.println("Latency distribution written to " + histogramOut);
+        }
+    }
+
+    private interface SendAction {
+        void send(Connection from, long sendTime) throws IOException;
+    }
+
+    // Sends `rate` messages per second, each from a random connection.
+    private Thread pacer(String threadName, int rate, SendAction action) {
+        if (rate <= 0) return null;
+        Thread t = new Thread(() -> {
+            long interval = TimeUnit.SECONDS.toNanos(1) / rate;
+            long next = System.nanoTime();
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            while (running) {
+                long now = System.nanoTime();
+                if (now < next) {
+                    LockSupport.parkNanos(next - now);
+                    continue;
+                }
+                Connection c = connections.get(random.nextInt(connections.size()));
+                try {
+                    action.send(c, next);
+                } catch (IOException e) {
+                    errors.increment();
+                }
+                next += interval;
+            }
+        }, threadName);
+        t.start();
+        return t;
+    }
+
+    private void onContent(String content) {
+        int at = content.indexOf(MARK);
+        if (at < 0) return;
+        int end = content.indexOf('|', at + MARK.length());
+        if (end < 0) return;
+        try {
+            long sentAt = Long.parseLong(content, at + MARK.length(), end, 10);
+            long elapsed = System.nanoTime() - sentAt;
+            latency.recordValue(Math.max(0, Math.min(elapsed, HIGHEST_TRACKABLE_NANOS)));
+            received.increment();
+        } catch (NumberFormatException ignored) {
+            // someone else's message
+        }
+    }
+
+    // One simulated user. Writes come from the pacer threads; a dedicated thread reads.
+    private final class Connection {
+        final String username;
+        final boolean binary;
+        private final FrameDecoder decoder = new FrameDecoder(1024, 1 << 20);
+        private Socket socket;
+        private InputStream in;
+        private OutputStream out;
+        private boolean binaryMode;
+
+        Connection(String username, boolean binary) {
+            this.username = username;
+            this.binary = binary;
+        }
+
+        void connect(String host, int port) throws IOException {
+            socket = new Socket();
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(host, port));
+            in = socket.getInputStream();
+            out = new BufferedOutputStream(socket.getOutputStream(), 4096);
+            // PING: it answers heartbeats, so the server may reap it if it stalls
+            writeLine("JOIN::" + username + "::PING" + (binary ? "," + BinaryProtocol.VERSION : ""));
+            out.flush();
+            while (true) {
+                while (!decoder.next()) {
+                    int n = decoder.readFrom(in);
+                    if (n < 0) throw new IOException("closed during handshake");
+                    bytesReceived.add(n);
+                }
+                String line = decoder.frameAsString();
+                if (line.equals("USERNAME_ACCEPTED::" + BinaryProtocol.VERSION)) {
+                    binaryMode = true;
+                    decoder.switchToBinary();
+                    return;
+                }
+                if (line.equals("USERNAME_ACCEPTED")) return;
+                if (line.startsWith("USERNAME_REJECTED::")) throw new IOException(line.substring(19));
+            }
+        }
+
+        void startReader() {
+            Thread t = new Thread(null, this::readLoop, "LoadGen-" + username, 256 * 1024);
+            t.setDaemon(true);
+            t.start();
+        }
+
+        private void readLoop() {
+            try {
+                while (true) {
+                    while (decoder.next()) {
+                        if (!decoder.isBinary()) {
+                            String line = decoder.frameAsString();
+                            if (line.startsWith("PING::")) pong();
+                            else onContent(line);
+                        } else {
+                            int op = decoder.opcode();
+                            if (op == BinaryProtocol.OP_TEXT) {
+                                if (decoder.readRemaining().startsWith("PING::")) pong();
+                            } else if (op == BinaryProtocol.OP_CHAT || op == BinaryProtocol.OP_PRIVATE) {
+                                decoder.readVarint(); // sender id
+                                decoder.readVarint(); // server timestamp
+                                onContent(decoder.readRemaining());
+                            }
+                        }
+                    }
+                    int n = decoder.readFrom(in);
+                    if (n < 0) break;
+                    bytesReceived.add(n);
+                }
+            } catch (IOException e) {
+                if (running) errors.increment();
+            }
+        }
+
+        synchronized void sendChat(long sendTime, String padding) throws IOException {
+            String content = MARK + sendTime + "|" + padding;
+            if (binaryMode) out.write(BinaryProtocol.encodeString(BinaryProtocol.OP_CHAT, content));
+            else writeLine("MSG::" + content);
+            out.flush();
+            sent.increment();
+        }
+
+        synchronized void pong() throws IOException {
+            if (binaryMode) out.write(BinaryProtocol.encodeString(BinaryProtocol.OP_COMMAND, "PONG::"));
+            else writeLine("PONG::");
+            out.flush();
+        }
+
+        synchronized void sendPrivate(String to, long sendTime, String padding) throws IOException {
+            String content = MARK + sendTime + "|" + padding;
+            if (binaryMode) out.write(BinaryProtocol.encodePrivate(to, content));
+            else writeLine("PMSG::" + to + "::" + content);
+            out.flush();
+            sentPrivate.increment();
+        }
+
+        private void writeLine(String line) throws IOException {
+            out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+
+        synchronized void close() {
+            try {
+                if (binaryMode) out.write(BinaryProtocol.encodeString(BinaryProtocol.OP_COMMAND, "EXIT::"));
+                else writeLine("EXIT::");
+                out.flush();
+            } catch (IOException ignored) {}
+            try { socket.close(); } catch (IOException ignored) {}
+        }
+    }
+
+    private String string(String key, String def) {
+        return options.getOrDefault(key, def);
+    }
+
+    private int integer(String key, int def) {
+        try {
+            return Integer.parseInt(options.getOrDefault(key, Integer.toString(def)));
+        } catch (NumberFormatException e) {
+            return def;
+        }
+    }
+
+    private static double ms(long nanos) { return nanos / 1e6; }
+
+    private static double us(long nanos) { return nanos / 1e3; }
+}
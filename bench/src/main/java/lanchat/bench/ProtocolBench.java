@@ -0,0 +1,63 @@
+package lanchat.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Encoding one broadcast in each wire format, and parsing a burst of inbound MSG:: lines with
+// the byte-level dispatcher vs the old String-per-line path. Run with -prof gc to compare
+// allocation per message.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProtocolBench {
+    private static final int LINES = 100;
+
+    @Param({"16", "256"})
+    int contentLength;
+
+    private Targets.Codec codec;
+    private String content;
+    private byte[] wire;
+
+    @Setup
+    public void setUp() {
+        codec = Targets.codec();
+        content = "x".repeat(contentLength);
+        wire = codec.wire(LINES, content);
+    }
+
+    @Benchmark
+    public byte[] encodeText() {
+        return codec.encodeText(content);
+    }
+
+    @Benchmark
+    public byte[] encodeBinary() {
+        return codec.encodeBinary(content);
+    }
+
+    // per burst of LINES messages
+    @Benchmark
+    public int decode() throws Exception {
+        return codec.decode(wire);
+    }
+
+    @Benchmark
+    public int decodeLegacy() {
+        return codec.decodeLegacy(wire);
+    }
+}
@@ -0,0 +1,97 @@
+package lanchat.bench;
+
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Server-side paths against a ChatServer with in-memory clients (BenchTargets.MemoryHandler):
+// broadcast fan-out (on the sender's thread vs. sharded across delivery workers), log() from
+// several threads at once, and username registration.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ServerBench {
+
+    @State(Scope.Benchmark)
+    public static class Room {
+        @Param({"100", "1000", "10000"})
+        int clients;
+
+        @Param({"false", "true"})
+        boolean binaryClients;
+
+        // 1 = the single-thread loop on the sender's thread; 0 = one shard per core
+        @Param({"1", "0"})
+        int shards;
+
+        Targets.Server server;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            server = Targets.server();
+            int n = shards > 0 ? shards : Runtime.getRuntime().availableProcessors();
+            server.setUp(clients, binaryClients, n, Files.createTempDirectory("lanchat-bench").toString());
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            server.tearDown();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class EmptyServer {
+        Targets.Server server;
+        final AtomicInteger names = new AtomicInteger();
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            server = Targets.server();
+            server.setUp(0, false, 1, Files.createTempDirectory("lanchat-bench").toString());
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            server.tearDown();
+        }
+    }
+
+    // one message to every connected client, until the last one has it queued
+    @Benchmark
+    public void broadcast(Room room) throws InterruptedException {
+        room.server.broadcast("benchmark message from one client to the whole room");
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void logContended(EmptyServer s) {
+        s.server.log("JOIN: someone at 2026-01-01 00:00:00");
+    }
+
+    // register and unregister a fresh name, four threads racing on the client map
+    @Benchmark
+    @Threads(4)
+    public boolean addRemoveClient(EmptyServer s) {
+        String name = "u" + s.names.incrementAndGet();
+        boolean added = s.server.addClient(name);
+        s.server.removeClient(name);
+        return added;
+    }
+}
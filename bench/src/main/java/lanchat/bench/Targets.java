@@ -0,0 +1,53 @@
+package lanchat.bench;
+
+// JMH refuses benchmark classes in the default package, and classes in a named package cannot
+// refer to the default-package chat classes. So each benchmark drives one of these interfaces,
+// implemented next to the chat classes by BenchTargets and looked up by name at setup.
+public final class Targets {
+    private Targets() {}
+
+    // Wire encode/decode of chat messages.
+    public interface Codec {
+        // One broadcast, encoded in each wire format.
+        byte[] encodeText(String content);
+        byte[] encodeBinary(String content);
+
+        // Inbound bytes holding `lines` MSG:: lines (text protocol).
+        byte[] wire(int lines, String content);
+
+        // Parse every MSG:: line in wire into a Message; returns the number parsed.
+        int decode(byte[] wire) throws Exception;
+
+        // The same with the old per-line String path (readLine + split("::") + a String-only
+        // Message with a formatted timestamp).
+        int decodeLegacy(byte[] wire);
+    }
+
+    // A ChatServer with in-memory clients: no sockets, frames are written to counters.
+    public interface Server {
+        // fanOutShards: broadcast delivery threads, 1 = on the calling thread
+        void setUp(int clients, boolean binaryClients, int fanOutShards, String logDir) throws Exception;
+        // returns once every client has the message in its outbound queue
+        void broadcast(String content) throws InterruptedException;
+        void log(String line);
+        boolean addClient(String username);
+        void removeClient(String username);
+        void tearDown();
+    }
+
+    public static Codec codec() {
+        return load("BenchTargets$CodecTarget", Codec.class);
+    }
+
+    public static Server server() {
+        return load("BenchTargets$ServerTarget", Server.class);
+    }
+
+    private static <T> T load(String className, Class<T> type) {
+        try {
+            return type.cast(Class.forName(className).getDeclaredConstructor().newInstance());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("benchmark target " + className + " not on the classpath", e);
+        }
+    }
+}